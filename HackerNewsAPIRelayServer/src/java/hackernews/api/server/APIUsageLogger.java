@@ -1,27 +1,33 @@
 package hackernews.api.server;
 
-import com.mongodb.Block;
-import com.mongodb.MongoClient;
-import com.mongodb.MongoClientURI;
-import com.mongodb.client.MongoCollection;
-import com.mongodb.client.MongoCursor;
-import com.mongodb.client.MongoDatabase;
-import com.mongodb.client.model.Accumulators;
-import com.mongodb.client.model.Aggregates;
-import static com.mongodb.client.model.Filters.eq;
-import com.mongodb.client.model.Projections;
-import com.mongodb.client.model.Sorts;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Paths;
 import java.text.SimpleDateFormat;
 import java.time.Instant;
 import java.time.LocalDate;
-import java.time.Period;
+import java.time.ZoneId;
+import java.time.temporal.ChronoUnit;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Function;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import org.bson.Document;
 
 /**
- * This provides an interface to log API usage to the remote MongoDB database.
+ * This provides an interface to log API usage to a {@link LogStore}: the remote
+ * MongoDB database by default, or append-only files on the local disk.
  * <p>
  * Logged data:
  * <ol>
@@ -33,13 +39,52 @@ import org.bson.Document;
  *     <li>Date and time a user makes a <code>POST</code> request to the server.</li>
  * </ol>
  * <p>
+ * Log records are not written on the caller's thread: they're put into a
+ * bounded in-memory queue, which a background writer drains into the store in
+ * batches. The store and the queue are set up with these system properties:
+ * <ul>
+ *     <li><strong>hackernews.logger.store:</strong> <code>mongo</code> for
+ *         {@link MongoLogStore} (default) or <code>local</code> for
+ *         {@link AppendOnlyLogStore}.</li>
+ *     <li><strong>hackernews.logger.mongoUri:</strong> URI of the MongoDB
+ *         database (defaults to the mLab database).</li>
+ *     <li><strong>hackernews.logger.dir:</strong> directory of the local log
+ *         files (default <code>hackernews-logs</code> in the user's home).</li>
+ *     <li><strong>hackernews.logger.queueSize:</strong> maximum number of
+ *         records waiting to be written (default 10000).</li>
+ *     <li><strong>hackernews.logger.flushSize:</strong> maximum number of
+ *         records written in one batch (default 500).</li>
+ *     <li><strong>hackernews.logger.flushInterval:</strong> maximum time in
+ *         milliseconds a record waits for its batch to fill up (default 1000).</li>
+ *     <li><strong>hackernews.logger.blockWhenFull:</strong> whether callers
+ *         wait for room when the queue is full, instead of dropping the
+ *         record (default false).</li>
+ *     <li><strong>hackernews.logger.summaryInterval:</strong> how often in
+ *         milliseconds the running totals are saved (default 60000).</li>
+ * </ul>
+ * <p>
+ * The analytics are answered from running totals ({@link UsageAggregates})
+ * that are updated as records are written, instead of scanning the log
+ * collections. The totals are saved periodically as the store's summary
+ * document, and rebuilt from the log collections if that document doesn't
+ * exist yet ({@link LogStore#rebuildSummary(int)}: aggregation pipelines on
+ * the MongoDB server, one pass over the local files).
+ * <p>
+ * Query latencies are also recorded into in-memory histograms
+ * ({@link LatencyHistogram}) per query type, one for all time and one for
+ * each of the last 24 hours, so latency percentiles can be read without
+ * touching the raw records. The all-time histograms are saved with the
+ * summary document.
+ * <p>
+ * Likewise, story queries are counted into heavy-hitter trackers
+ * ({@link SpaceSaving}) for all time and for each of the last 24 hours, so the
+ * most queried stories are known without aggregating the StoryQueried
+ * collection.
+ * <p>
  * References:
  * <ul>
  *     <li>MongoDB Driver sample code: https://blog.mlab.com/2011/11/ample-mongodb-examples/</li>
  *     <li>MongoDB Java Driver Documentation: http://api.mongodb.com/java/current/</li>
- *     <li>MongoDB manual on aggregation: https://docs.mongodb.com/manual/aggregation/</li>
- *     <li>MongoDB Java driver on read operation: http://mongodb.github.io/mongo-java-driver/3.4/driver/tutorials/perform-read-operations/</li>
- *     <li>MongoDB Java driver on aggregation: http://mongodb.github.io/mongo-java-driver/3.4/driver/tutorials/aggregation/</li>
  * </ul>
  * 
  * @author Stephen Xie &lt;[redacted]@andrew.cmu.edu&gt;
@@ -48,26 +93,93 @@ public class APIUsageLogger {
     
     // singleton pattern
     private static APIUsageLogger instance = null;
-    public static APIUsageLogger getInstance() {
+    public static synchronized APIUsageLogger getInstance() {
         if (instance == null)
-            instance = new APIUsageLogger();
+            instance = new APIUsageLogger(
+                    openStore(),
+                    Integer.getInteger("hackernews.logger.queueSize", 10000),
+                    Integer.getInteger("hackernews.logger.flushSize", 500),
+                    Long.getLong("hackernews.logger.flushInterval", 1000),
+                    Boolean.getBoolean("hackernews.logger.blockWhenFull"),
+                    Long.getLong("hackernews.logger.summaryInterval", 60000));
         return instance;
     }
     
+    /**
+     * Writes out all queued records and stops the singleton logger, if it has
+     * been created.
+     */
+    public static synchronized void shutdownInstance() {
+        if (instance != null) {
+            instance.shutdown();
+            instance = null;
+        }
+    }
+    
+    // opens the store chosen by the system properties
+    private static LogStore openStore() {
+        if ("local".equals(System.getProperty("hackernews.logger.store"))) {
+            String dir = System.getProperty("hackernews.logger.dir",
+                    Paths.get(System.getProperty("user.home"), "hackernews-logs").toString());
+            try {
+                return new AppendOnlyLogStore(Paths.get(dir));
+            } catch (IOException ex) {
+                throw new UncheckedIOException("Failed to open the log files in " + dir, ex);
+            }
+        }
+        return new MongoLogStore(System.getProperty("hackernews.logger.mongoUri", dbURI));
+    }
+    
     // URI of the remote mongodb database service by mLab
     private static String dbURI = "mongodb://***:***@***.mlab.com:***/heroku_***";
     
-    private MongoDatabase db;
+    private final LogStore store;
     
     private SimpleDateFormat dateFormatter = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
     
+    // records waiting to be written by the background writer
+    private final BlockingQueue<PendingRecord> queue;
+    private final int flushSize;  // maximum number of records per batch
+    private final long flushInterval;  // in milliseconds
+    private final boolean blockWhenFull;  // wait for room instead of dropping
+    private final Thread writer;
+    private volatile boolean running = true;
+    private final AtomicLong dropped = new AtomicLong();  // records lost to a full queue
+    
+    private final UsageAggregates aggregates;  // running totals for the analytics
+    private final long summaryInterval;  // how often the totals are saved, in milliseconds
+    private long summarySavedAt = 0;  // only touched by the writer
+    
+    // latency histograms per query type
+    private final Map<String, LatencyWindows> latencyHistograms = new ConcurrentHashMap<>();
+    
+    // most queried stories
+    private final StoryRankings storyRankings = new StoryRankings();
     
-    public APIUsageLogger() {
-        // connect to the remote MongoDB database
-        MongoClientURI mongoUri = new MongoClientURI(dbURI);
-        MongoClient mongoClient = new MongoClient(mongoUri);
-        // get the database
-        db = mongoClient.getDatabase(mongoUri.getDatabase());
+    
+    /**
+     * @param store where the log records go
+     * @param queueSize maximum number of records waiting to be written
+     * @param flushSize maximum number of records written in one batch
+     * @param flushInterval maximum time a record waits for its batch to fill
+     *                      up, in milliseconds
+     * @param blockWhenFull whether callers wait for room when the queue is
+     *                      full, instead of dropping the record
+     * @param summaryInterval how often the running totals are saved, in
+     *                        milliseconds
+     */
+    public APIUsageLogger(LogStore store, int queueSize, int flushSize, long flushInterval,
+            boolean blockWhenFull, long summaryInterval) {
+        this.store = store;
+        this.queue = new ArrayBlockingQueue<>(queueSize);
+        this.flushSize = flushSize;
+        this.flushInterval = flushInterval;
+        this.blockWhenFull = blockWhenFull;
+        this.summaryInterval = summaryInterval;
+        this.aggregates = loadAggregates();
+        writer = new Thread(this::drainQueue, "api-usage-log-writer");
+        writer.setDaemon(true);
+        writer.start();
     }
     
     // --- loggers -------------------------------------------------------
@@ -78,12 +190,12 @@ public class APIUsageLogger {
      * @param time time in milliseconds
      */
     public void logTimeUsed2GetTopStories(long time) {
-        // access the HNApiQueryLatency collection, or create one if not exists
-        MongoCollection<Document> collection = db.getCollection("HNApiQueryLatency");
+        // count it into the latency histograms right away
+        latencyWindows("getTopStories").record(time);
         // create the record document
         Document record = new Document("type", "getTopStories").append("time", time);
-        // then push this record to database
-        collection.insertOne(record);
+        // then queue this record up to be pushed to database
+        enqueue("HNApiQueryLatency", record);
     }
     
     /**
@@ -92,12 +204,12 @@ public class APIUsageLogger {
      * @param time time in milliseconds
      */
     public void logTimeUsed2GetStory(long time) {
-        // access the HNApiQueryLatency collection, or create one if not exists
-        MongoCollection<Document> collection = db.getCollection("HNApiQueryLatency");
+        // count it into the latency histograms right away
+        latencyWindows("getStory").record(time);
         // create the record document
         Document record = new Document("type", "getStory").append("time", time);
-        // then push this record to database
-        collection.insertOne(record);
+        // then queue this record up to be pushed to database
+        enqueue("HNApiQueryLatency", record);
     }
     
     /**
@@ -107,15 +219,15 @@ public class APIUsageLogger {
      * @param title title of the story queried
      */
     public void logStoryQueried(String id, String title) {
-        // access the StoryQueried collection, or create one if not exists
-        MongoCollection<Document> collection = db.getCollection("StoryQueried");
+        // count it into the most queried stories right away
+        storyRankings.record(id, title);
         // create the record document
         Document record = new Document("id", id)
                 .append("title", title)
                 .append("date", Instant.now().getEpochSecond());
                 // also logs the time the log is made in Unix time (long type)
-        // then push this record to database
-        collection.insertOne(record);
+        // then queue this record up to be pushed to database
+        enqueue("StoryQueried", record);
     }
     
     /**
@@ -125,13 +237,11 @@ public class APIUsageLogger {
      * Unix time format.
      */
     public void logHNApiDown() {
-        // access the HNApiDownTime collection, or create one if not exists
-        MongoCollection<Document> collection = db.getCollection("HNApiDownTime");
         // create the record document
         Document record = new Document("date", Instant.now().getEpochSecond());
                 // also logs the time the log is made in Unix time (long type)
-        // then push this record to database
-        collection.insertOne(record);
+        // then queue this record up to be pushed to database
+        enqueue("HNApiDownTime", record);
     }
     
     /**
@@ -140,57 +250,359 @@ public class APIUsageLogger {
      * @param info information of the request
      */
     public void logWrongGetReqest(String info) {
-        // access the MalformedRequest collection, or create one if not exists
-        MongoCollection<Document> collection = db.getCollection("MalformedRequest");
         // create the record document
         Document record = new Document("type", "GET")
                 .append("info", info)
                 .append("date", Instant.now().getEpochSecond());
                 // logs the time the log is made in Unix time (long type)
-        // then push this record to database
-        collection.insertOne(record);
+        // then queue this record up to be pushed to database
+        enqueue("MalformedRequest", record);
     }
     
     /**
      * Logs the time of a faulty <code>POST</code> request.
      */
     public void logWrongPostReqest() {
-        // access the MalformedRequest collection, or create one if not exists
-        MongoCollection<Document> collection = db.getCollection("MalformedRequest");
         // create the record document
         Document record = new Document("type", "POST")
                 .append("date", Instant.now().getEpochSecond());
                 // logs the time the log is made in Unix time (long type)
-        // then push this record to database
-        collection.insertOne(record);
+        // then queue this record up to be pushed to database
+        enqueue("MalformedRequest", record);
     }
     
-    // --- analytics ------------------------------------------------------
+    // --- background writer ----------------------------------------------
+    
+    // a log record waiting to be written
+    private static class PendingRecord {
+        final String collection;
+        final Document record;
+        
+        PendingRecord(String collection, Document record) {
+            this.collection = collection;
+            this.record = record;
+        }
+    }
     
     /**
-     * Gets the average latency of making queries to the HackerNews API.
+     * Queues a record up to be written by the background writer.
      * 
-     * @return latency in seconds, or -1 if no record is found
+     * @param collection name of the collection the record goes to
+     * @param record the record document
      */
-    public double getAverageQueryLatency() {
-        MongoCollection<Document> collection = db.getCollection("HNApiQueryLatency");
+    private void enqueue(String collection, Document record) {
+        PendingRecord pending = new PendingRecord(collection, record);
+        if (!running) {
+            dropped.incrementAndGet();  // already shut down
+        } else if (blockWhenFull) {
+            try {
+                queue.put(pending);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                dropped.incrementAndGet();
+            }
+        } else if (!queue.offer(pending)) {
+            dropped.incrementAndGet();
+        }
+    }
+    
+    /**
+     * Body of the background writer: collects records into batches of up to
+     * <code>flushSize</code>, waiting no longer than <code>flushInterval</code>
+     * for a batch to fill up, and writes each batch to the store. Once
+     * shut down, it keeps going until the queue is empty.
+     */
+    private void drainQueue() {
+        List<PendingRecord> batch = new ArrayList<>(flushSize);
+        while (running || !queue.isEmpty()) {
+            try {
+                PendingRecord first = queue.poll(flushInterval, TimeUnit.MILLISECONDS);
+                if (first == null) continue;
+                batch.add(first);
+                
+                long deadline = System.currentTimeMillis() + flushInterval;
+                while (batch.size() < flushSize && running) {
+                    long wait = deadline - System.currentTimeMillis();
+                    if (wait <= 0) break;
+                    PendingRecord next = queue.poll(wait, TimeUnit.MILLISECONDS);
+                    if (next == null) break;
+                    batch.add(next);
+                    queue.drainTo(batch, flushSize - batch.size());
+                }
+                queue.drainTo(batch, flushSize - batch.size());
+                
+            } catch (InterruptedException e) {
+                // nobody interrupts the writer on purpose; keep draining
+            }
+            
+            flush(batch);
+            batch.clear();
+            
+            if (System.currentTimeMillis() - summarySavedAt >= summaryInterval)
+                saveAggregates();
+        }
+        saveAggregates();  // shutting down
+    }
+    
+    /**
+     * Writes a batch of records, with one append per collection.
+     * 
+     * @param batch records to be written
+     */
+    private void flush(List<PendingRecord> batch) {
+        if (batch.isEmpty()) return;
+        
+        // group the records by collection, keeping their order
+        Map<String, List<Document>> byCollection = new LinkedHashMap<>();
+        for (PendingRecord pending : batch) {
+            byCollection.computeIfAbsent(pending.collection, k -> new ArrayList<>())
+                    .add(pending.record);
+        }
+        
+        for (Map.Entry<String, List<Document>> entry : byCollection.entrySet()) {
+            try {
+                store.append(entry.getKey(), entry.getValue());
+                for (Document record : entry.getValue())
+                    aggregates.add(entry.getKey(), record);
+            } catch (IOException | RuntimeException ex) {
+                // don't let a storage hiccup kill the writer; these records are lost
+                dropped.addAndGet(entry.getValue().size());
+                Logger.getLogger(APIUsageLogger.class.getName()).log(Level.WARNING,
+                        "Failed to write log records to " + entry.getKey(), ex);
+            }
+        }
+    }
+    
+    /**
+     * Loads the running totals from the summary document, or rebuilds them
+     * from the log collections if there's no summary yet; see
+     * {@link LogStore#rebuildSummary(int)}.
+     * 
+     * @return the running totals
+     */
+    @SuppressWarnings("unchecked")
+    private UsageAggregates loadAggregates() {
+        try {
+            Document summary = store.loadSummary();
+            if (summary == null) {
+                // first run with totals: go through the history once
+                summary = store.rebuildSummary(StoryRankings.ALL_TIME_CAPACITY);
+            } else if (summary.get("storyRanking") == null) {
+                // summary from before the ranking was kept: seed it from the history
+                summary.append("storyRanking",
+                        store.rebuildSummary(StoryRankings.ALL_TIME_CAPACITY).get("storyRanking"));
+            }
+            
+            // read everything before keeping any of it, so that a malformed
+            // summary leaves nothing half loaded
+            UsageAggregates loaded = UsageAggregates.fromDocument(summary);
+            Map<String, LatencyHistogram> histograms = new HashMap<>();
+            Document histogramDocs = summary.get("latencyHistograms", Document.class);
+            if (histogramDocs != null) {
+                for (String type : histogramDocs.keySet())
+                    histograms.put(type, LatencyHistogram.fromDocument(histogramDocs.get(type, Document.class)));
+            }
+            SpaceSaving ranking = new SpaceSaving(StoryRankings.ALL_TIME_CAPACITY);
+            List<Document> rankingDocs = (List<Document>) summary.get("storyRanking");
+            if (rankingDocs != null)
+                ranking.addDocuments(rankingDocs);
+            
+            for (Map.Entry<String, LatencyHistogram> e : histograms.entrySet())
+                latencyWindows(e.getKey()).allTime.add(e.getValue());
+            storyRankings.allTime.add(ranking);
+            return loaded;
+            
+        } catch (IOException | RuntimeException ex) {
+            // start from scratch rather than refuse to log at all
+            Logger.getLogger(APIUsageLogger.class.getName()).log(Level.WARNING,
+                    "Failed to load the usage summary", ex);
+            return new UsageAggregates();
+        }
+    }
+    
+    /**
+     * Saves the running totals, the all-time latency histograms and the
+     * all-time most queried stories as the summary document.
+     */
+    private void saveAggregates() {
+        summarySavedAt = System.currentTimeMillis();
+        Document histograms = new Document();
+        for (Map.Entry<String, LatencyWindows> e : latencyHistograms.entrySet()) {
+            histograms.append(e.getKey(), e.getValue().allTime.toDocument());
+        }
+        try {
+            store.saveSummary(aggregates.toDocument()
+                    .append("latencyHistograms", histograms)
+                    .append("storyRanking", storyRankings.allTime.toDocuments()));
+        } catch (IOException | RuntimeException ex) {
+            Logger.getLogger(APIUsageLogger.class.getName()).log(Level.WARNING,
+                    "Failed to save the usage summary", ex);
+        }
+    }
+    
+    // the latency histograms of a query type, created on first use
+    private LatencyWindows latencyWindows(String type) {
+        return latencyHistograms.computeIfAbsent(type, k -> new LatencyWindows());
+    }
+    
+    // latency histograms of one query type: all time, and one per hour for
+    // the last 24 hours
+    private static class LatencyWindows {
+        static final int HOURS = 24;
+        
+        final LatencyHistogram allTime = new LatencyHistogram();
+        final AtomicReferenceArray<HourSlot> hourly = new AtomicReferenceArray<>(HOURS);
+        
+        // the histogram of one hour; a slot is replaced, never reset, when
+        // its hour comes around again, so a recording that raced with the
+        // replacement lands in the hour it checked and not the next one
+        static final class HourSlot {
+            final long hour;
+            final LatencyHistogram histogram = new LatencyHistogram();
+            
+            HourSlot(long hour) {
+                this.hour = hour;
+            }
+        }
+        
+        void record(long time) {
+            allTime.record(time);
+            long hour = System.currentTimeMillis() / 3600000;
+            int slot = (int) (hour % HOURS);
+            HourSlot current = hourly.get(slot);
+            while (current == null || current.hour < hour) {
+                // the slot still holds an hour from a day ago; recycle it
+                HourSlot fresh = new HourSlot(hour);
+                if (hourly.compareAndSet(slot, current, fresh)) {
+                    current = fresh;
+                } else {
+                    current = hourly.get(slot);
+                }
+            }
+            if (current.hour == hour)
+                current.histogram.record(time);
+            // else the clock moved on a day while we were here; drop it
+        }
+        
+        LatencyHistogram merged(int hours) {
+            LatencyHistogram result = new LatencyHistogram();
+            if (hours <= 0) {
+                result.add(allTime);
+                return result;
+            }
+            long now = System.currentTimeMillis() / 3600000;
+            for (long hour = now - Math.min(hours, HOURS) + 1; hour <= now; hour++) {
+                HourSlot slot = hourly.get((int) (hour % HOURS));
+                if (slot != null && slot.hour == hour)
+                    result.add(slot.histogram);
+            }
+            return result;
+        }
+    }
+    
+    // most queried stories: all time, and one tracker per hour for the last
+    // 24 hours
+    private static class StoryRankings {
+        static final int HOURS = 24;
+        static final int ALL_TIME_CAPACITY = 200;
+        static final int HOURLY_CAPACITY = 100;
+        
+        final SpaceSaving allTime = new SpaceSaving(ALL_TIME_CAPACITY);
+        final SpaceSaving[] hourly = new SpaceSaving[HOURS];
+        final long[] hourOf = new long[HOURS];  // hour each slot holds; guarded by "this"
         
-        long totalTime = 0;
-        long recordCount = collection.count();
-        if (recordCount < 1) return -1;  // no record found
+        StoryRankings() {
+            for (int i = 0; i < HOURS; i++)
+                hourly[i] = new SpaceSaving(HOURLY_CAPACITY);
+        }
         
-        // iterate through all documents in the collection, and calculate time
-        // accordingly
-        try (
-                MongoCursor<Document> cursor = collection.find().iterator()
-                ) {
-            while (cursor.hasNext()) {
-                Document doc = cursor.next();
-                totalTime += doc.getLong("time");
+        void record(String id, String title) {
+            allTime.offer(id, title);
+            long hour = System.currentTimeMillis() / 3600000;
+            int slot = (int) (hour % HOURS);
+            synchronized (this) {
+                if (hourOf[slot] != hour) {
+                    // the slot still holds an hour from a day ago; recycle it
+                    hourly[slot].reset();
+                    hourOf[slot] = hour;
+                }
+                // under the same lock, so the slot can't be recycled for
+                // the next hour between the check and the offer
+                hourly[slot].offer(id, title);
             }
         }
         
-        return (totalTime / (double) recordCount) / 1000;  // convert to seconds
+        SpaceSaving merged(int hours) {
+            if (hours <= 0) return allTime;
+            SpaceSaving result = new SpaceSaving(HOURLY_CAPACITY);
+            long now = System.currentTimeMillis() / 3600000;
+            for (long hour = now - Math.min(hours, HOURS) + 1; hour <= now; hour++) {
+                int slot = (int) (hour % HOURS);
+                synchronized (this) {
+                    if (hourOf[slot] == hour)
+                        result.add(hourly[slot]);
+                }
+            }
+            return result;
+        }
+    }
+    
+    /**
+     * Stops accepting records, waits for the queued ones to be written, and
+     * closes the store.
+     */
+    public void shutdown() {
+        running = false;
+        // the writer notices within one flush interval; not interrupting it
+        // so that a database write in progress isn't cut short
+        try {
+            writer.join(30000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        store.close();
+    }
+    
+    /**
+     * @return the running totals of the logs
+     */
+    public UsageAggregates getAggregates() {
+        return aggregates;
+    }
+    
+    /**
+     * @return number of log records lost because the queue was full or the
+     *         store write failed
+     */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+    
+    // --- analytics ------------------------------------------------------
+    
+    /**
+     * Gets the average latency of making queries to the HackerNews API.
+     * 
+     * @return latency in seconds, or -1 if no record is found
+     */
+    public double getAverageQueryLatency() {
+        double average = aggregates.getAverageLatency();  // in milliseconds
+        if (average < 0) return -1;  // no record found
+        return average / 1000;  // convert to seconds
+    }
+    
+    
+    /**
+     * Gets the latency histogram of a type of query to the HackerNews API.
+     * 
+     * @param type query type, "getTopStories" or "getStory"
+     * @param hours how many of the latest hours the histogram covers, up to
+     *              24; 0 for all time
+     * @return the histogram, in milliseconds; empty if there's no record
+     */
+    public LatencyHistogram getLatencyHistogram(String type, int hours) {
+        LatencyWindows windows = latencyHistograms.get(type);
+        return (windows != null) ? windows.merged(hours) : new LatencyHistogram();
     }
     
     
@@ -201,41 +613,32 @@ public class APIUsageLogger {
      *         stores number of times; or null if no record found
      */
     public String[] getMostQueriedStory() {
-        MongoCollection<Document> collection = db.getCollection("StoryQueried");
-        
-        if (collection.count() < 1)
+        List<SpaceSaving.Entry> top = storyRankings.allTime.top(1);
+        if (top.isEmpty())
             return null;  // no record found
         
-        // count the number of records for each story ID, then sort them in
-        // descending order according to the count result; the first result
-        // contains the most queried story info
-        Document mostQueried = collection.aggregate(
-                Arrays.asList(
-                        Aggregates.group("$id", Accumulators.sum("count", 1)),
-                        Aggregates.sort(Sorts.descending("count")),
-                        // we now get {"_id", "count"}, with "_id" being the original
-                        // "id" field
-                        Aggregates.project(Projections.fields(
-                                Projections.excludeId(),
-                                // don't include "_id" in final result
-                                Projections.computed("id", "$_id"),
-                                // make a new "id" field; it has the same value
-                                // as "_id" (the new "id" is "computed from" "_id")
-                                Projections.include("count")
-                                // also include "count" field; final result:
-                                // a series of {"id", "count"}
-                        ))
-                )
-        ).first();
+        SpaceSaving.Entry mostQueried = top.get(0);
         String[] result = new String[3];
-        result[0] = mostQueried.getString("id");
-        result[2] = Integer.toString(mostQueried.getInteger("count"));
-        // now query title using id; I couldn't figure out a way to somehow
-        // include title in the above aggregation
-        result[1] = collection.find(eq("id", result[0])).first().getString("title");
+        result[0] = mostQueried.getId();
+        result[1] = mostQueried.getTitle();
+        result[2] = Long.toString(mostQueried.getCount());
         return result;
     }
     
+    /**
+     * Gets the most queried stories.
+     * <p>
+     * Counts are upper bounds; they may be higher than the true counts by at
+     * most {@link SpaceSaving.Entry#getError()}.
+     * 
+     * @param k maximum number of stories to return
+     * @param hours how many of the latest hours to cover, up to 24; 0 for all time
+     * @return the most queried stories, most queried first
+     */
+    public List<SpaceSaving.Entry> getMostQueriedStories(int k, int hours) {
+        return storyRankings.merged(hours).top(k);
+    }
+    
     
      /**
      * Gets how frequent the HackerNews API service goes down.
@@ -243,17 +646,14 @@ public class APIUsageLogger {
      * @return average number of down times per month
      */
     public double getHNApiDownFreq() {
-        MongoCollection<Document> collection = db.getCollection("HNApiDownTime");
-        
         // get the total number of down records
-        long total = collection.count();
+        long total = aggregates.getApiDownCount();
         if (total < 1) return 0;
         // find the earlist record
-        Document earliest = collection.find().sort(Sorts.ascending("date")).first();
+        LocalDate earliestDate = Instant.ofEpochSecond(aggregates.getEarliestApiDown())
+                .atZone(ZoneId.systemDefault()).toLocalDate();
         // how many months passed since then?
-        LocalDate earliestDate = LocalDate.ofEpochDay(earliest.getLong("date"));
-        Period period = Period.between(earliestDate, LocalDate.now());
-        int monthsBetween = period.getMonths();
+        long monthsBetween = ChronoUnit.MONTHS.between(earliestDate, LocalDate.now());
         
         if (monthsBetween < 1)  // less than a month will count as one month
             return total;
@@ -265,97 +665,119 @@ public class APIUsageLogger {
     // --- logs -------------------------------------------
     
     /**
-     * Returns all records in the HNApiQueryLatency collection.
+     * Returns a page of records in the HNApiQueryLatency collection.
      * 
-     * @return results as a list of arrays of size 2 each: item at index 0 being
-     *         type, 1 being time
+     * @param cursor cursor returned with the previous page, or null for the
+     *               first (newest) page
+     * @param pageSize maximum number of records on the page
+     * @param from only include records logged at or after this Unix time; 0
+     *             for no lower limit
+     * @param to only include records logged before this Unix time; 0 for no
+     *           upper limit
+     * @return results as a page of arrays of size 2 each: item at index 0
+     *         being type, 1 being time
      */
-    public ArrayList<String[]> getAllHNAPIQueryLatency() {
-        MongoCollection<Document> collection = db.getCollection("HNApiQueryLatency");
-        if (collection.count() < 1) return null;  // collection is empty
-        
-        ArrayList<String[]> result = new ArrayList<>();
-        collection.find().forEach(new Block<Document>() {
-            @Override
-            public void apply(final Document doc) {
-                String[] record = new String[2];
-                record[0] = doc.getString("type");
-                record[1] = Long.toString(doc.getLong("time"));
-                result.add(record);
-            }
+    public LogPage getHNAPIQueryLatency(String cursor, int pageSize, long from, long to) {
+        return findPage("HNApiQueryLatency", cursor, pageSize, from, to, doc -> new String[] {
+            doc.getString("type"),
+            Long.toString(doc.getLong("time"))
         });
-        return result;
     }
     
     /**
-     * Returns all records in the StoryQueried collection.
+     * Returns a page of records in the StoryQueried collection.
      * 
-     * @return results as a list of arrays of size 3 each: item at index 0 being
-     *         id, 1 being title, 2 being date
+     * @param cursor cursor returned with the previous page, or null for the
+     *               first (newest) page
+     * @param pageSize maximum number of records on the page
+     * @param from only include records logged at or after this Unix time; 0
+     *             for no lower limit
+     * @param to only include records logged before this Unix time; 0 for no
+     *           upper limit
+     * @return results as a page of arrays of size 3 each: item at index 0
+     *         being id, 1 being title, 2 being date
      */
-    public ArrayList<String[]> getAllStoryQueried() {
-        MongoCollection<Document> collection = db.getCollection("StoryQueried");
-        if (collection.count() < 1) return null;  // collection is empty
-        
-        ArrayList<String[]> result = new ArrayList<>();
-        collection.find().forEach(new Block<Document>() {
-            @Override
-            public void apply(final Document doc) {
-                String[] record = new String[3];
-                record[0] = doc.getString("id");
-                record[1] = doc.getString("title");
-                Date date = new Date(doc.getLong("date") * 1000);  // convert unix time to date
-                record[2] = dateFormatter.format(date);
-                result.add(record);
-            }
+    public LogPage getStoryQueried(String cursor, int pageSize, long from, long to) {
+        return findPage("StoryQueried", cursor, pageSize, from, to, doc -> new String[] {
+            doc.getString("id"),
+            doc.getString("title"),
+            formatDate(doc.getLong("date"))
         });
-        return result;
     }
     
     /**
-     * Returns all records in the HNApiDownTime collection.
+     * Returns a page of records in the HNApiDownTime collection.
      * 
-     * @return date result as a list
+     * @param cursor cursor returned with the previous page, or null for the
+     *               first (newest) page
+     * @param pageSize maximum number of records on the page
+     * @param from only include records logged at or after this Unix time; 0
+     *             for no lower limit
+     * @param to only include records logged before this Unix time; 0 for no
+     *           upper limit
+     * @return results as a page of arrays of size 1 each: the date
      */
-    public ArrayList<String> getAllHNApiDownTime() {
-        MongoCollection<Document> collection = db.getCollection("HNApiDownTime");
-        if (collection.count() < 1) return null;  // collection is empty
-        
-        ArrayList<String> result = new ArrayList<>();
-        collection.find().forEach(new Block<Document>() {
-            @Override
-            public void apply(final Document doc) {
-                Date date = new Date(doc.getLong("date") * 1000);
-                result.add(dateFormatter.format(date));
-            }
+    public LogPage getHNApiDownTime(String cursor, int pageSize, long from, long to) {
+        return findPage("HNApiDownTime", cursor, pageSize, from, to, doc -> new String[] {
+            formatDate(doc.getLong("date"))
         });
-        return result;
     }
     
     /**
-     * Returns all records in the MalformedRequest collection.
+     * Returns a page of records in the MalformedRequest collection.
      * 
-     * @return results as a list of arrays of size 3 each: item at index 0 being
-     *         type, 1 being date, 2 being info (could be N/A)
+     * @param cursor cursor returned with the previous page, or null for the
+     *               first (newest) page
+     * @param pageSize maximum number of records on the page
+     * @param from only include records logged at or after this Unix time; 0
+     *             for no lower limit
+     * @param to only include records logged before this Unix time; 0 for no
+     *           upper limit
+     * @return results as a page of arrays of size 3 each: item at index 0
+     *         being type, 1 being date, 2 being info (could be N/A)
      */
-    public ArrayList<String[]> getAllMalformedRequest() {
-        MongoCollection<Document> collection = db.getCollection("MalformedRequest");
-        if (collection.count() < 1) return null;  // collection is empty
-        
-        ArrayList<String[]> result = new ArrayList<>();
-        collection.find().forEach(new Block<Document>() {
-            @Override
-            public void apply(final Document doc) {
-                String[] record = new String[3];
-                record[0] = doc.getString("type");
-                Date date = new Date(doc.getLong("date") * 1000);
-                record[1] = dateFormatter.format(date);
-                String info = doc.getString("info");
-                record[2] = (info != null) ? info : "N/A";
-                result.add(record);
-            }
+    public LogPage getMalformedRequest(String cursor, int pageSize, long from, long to) {
+        return findPage("MalformedRequest", cursor, pageSize, from, to, doc -> {
+            String info = doc.getString("info");
+            return new String[] {
+                doc.getString("type"),
+                formatDate(doc.getLong("date")),
+                (info != null) ? info : "N/A"
+            };
         });
-        return result;
+    }
+    
+    /**
+     * Reads one page of a log collection, newest first. Only one page of
+     * records is held in memory.
+     * 
+     * @param collectionName name of the log collection
+     * @param cursor cursor returned with the previous page, or null for the
+     *               first page; ignored if malformed
+     * @param pageSize maximum number of records on the page, between 1 and 1000
+     * @param from lower limit (inclusive) in Unix time, or 0
+     * @param to upper limit (exclusive) in Unix time, or 0
+     * @param mapper turns a record document into a row
+     * @return the page; empty if the collection can't be read
+     */
+    private LogPage findPage(String collectionName, String cursor, int pageSize, long from, long to,
+            Function<Document, String[]> mapper) {
+        pageSize = Math.max(1, Math.min(pageSize, 1000));
+        try {
+            return store.findPage(collectionName, cursor, pageSize, from, to, mapper);
+        } catch (IOException ex) {
+            Logger.getLogger(APIUsageLogger.class.getName()).log(Level.WARNING,
+                    "Failed to read the " + collectionName + " logs", ex);
+            return new LogPage(new ArrayList<>(), null);
+        }
+    }
+    
+    // formats a Unix time for display
+    private String formatDate(long unixTime) {
+        Date date = new Date(unixTime * 1000);  // convert unix time to date
+        synchronized (dateFormatter) {  // SimpleDateFormat isn't thread-safe
+            return dateFormatter.format(date);
+        }
     }
    
 }
@@ -0,0 +1,26 @@
+package hackernews.api.server;
+
+import javax.servlet.ServletContextEvent;
+import javax.servlet.ServletContextListener;
+import javax.servlet.annotation.WebListener;
+
+/**
+ * Makes sure all queued API usage log records are written to the database
+ * before the application is undeployed.
+ * 
+ * @author Stephen Xie &lt;[redacted]@andrew.cmu.edu&gt;
+ */
+@WebListener
+public class APIUsageLoggerListener implements ServletContextListener {
+
+    @Override
+    public void contextInitialized(ServletContextEvent sce) {
+        // the logger is created lazily by the servlets
+    }
+
+    @Override
+    public void contextDestroyed(ServletContextEvent sce) {
+        APIUsageLogger.shutdownInstance();
+    }
+    
+}
@@ -0,0 +1,323 @@
+package hackernews.api.server;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import org.bson.Document;
+
+/**
+ * Log storage in append-only files on the local disk.
+ * <p>
+ * Every collection has a fixed record layout (see {@link #SCHEMAS}), so each
+ * record takes the same number of bytes and record <i>n</i> sits at a known
+ * offset. Records are appended to segment files of
+ * {@value #RECORDS_PER_SEGMENT} records each, which are memory-mapped:
+ * appending a record is a few writes into memory, and reading one is a few
+ * reads. Strings longer than their field are truncated.
+ * <p>
+ * Each record starts with the time it was appended, in milliseconds; the
+ * times never decrease within a collection, so time ranges are found by
+ * binary search. A time of 0 marks an unused slot, which is how the end of
+ * the log is found again after a restart. Page cursors are record numbers.
+ * <p>
+ * Directory layout: <code>&lt;dir&gt;/&lt;collection&gt;/&lt;segment
+ * number&gt;.seg</code>, plus <code>&lt;dir&gt;/summary.json</code> for the
+ * summary document.
+ * <p>
+ * Appended records are in the OS page cache right away, so they survive the
+ * JVM going down; they're forced to disk on {@link #close()}.
+ *
+ * @author Stephen Xie &lt;[redacted]@andrew.cmu.edu&gt;
+ */
+public class AppendOnlyLogStore implements LogStore {
+
+    private static final int RECORDS_PER_SEGMENT = 1 << 16;
+
+    // record layouts of the log collections
+    private static final Map<String, Field[]> SCHEMAS = new HashMap<>();
+    static {
+        SCHEMAS.put("HNApiQueryLatency", new Field[] {
+            Field.string("type", 16), Field.number("time")
+        });
+        SCHEMAS.put("StoryQueried", new Field[] {
+            Field.string("id", 24), Field.string("title", 256), Field.number("date")
+        });
+        SCHEMAS.put("HNApiDownTime", new Field[] {
+            Field.number("date")
+        });
+        SCHEMAS.put("MalformedRequest", new Field[] {
+            Field.string("type", 8), Field.string("info", 256), Field.number("date")
+        });
+    }
+
+    private final Path dir;
+    private final Map<String, Log> logs = new HashMap<>();
+
+
+    /**
+     * Opens the log files in a directory, creating them if need be.
+     *
+     * @param dir the directory
+     * @throws IOException if the files can't be opened
+     */
+    public AppendOnlyLogStore(Path dir) throws IOException {
+        this.dir = dir;
+        for (Map.Entry<String, Field[]> schema : SCHEMAS.entrySet()) {
+            logs.put(schema.getKey(), new Log(dir.resolve(schema.getKey()), schema.getValue()));
+        }
+    }
+
+    @Override
+    public void append(String collection, List<Document> records) throws IOException {
+        Log log = log(collection);
+        for (Document record : records) {
+            log.append(record);
+        }
+    }
+
+    @Override
+    public LogPage findPage(String collection, String cursor, int pageSize, long from, long to,
+            Function<Document, String[]> mapper) {
+        Log log = log(collection);
+        long count = log.count;
+
+        // records within the time range are [low, high)
+        long low = (from > 0) ? log.firstAtOrAfter(from * 1000, count) : 0;
+        long high = (to > 0) ? log.firstAtOrAfter(to * 1000, count) : count;
+        if (cursor != null) {
+            try {
+                high = Math.min(high, Long.parseLong(cursor));
+            } catch (NumberFormatException e) {
+                // malformed cursor; start from the newest record
+            }
+        }
+
+        List<String[]> records = new ArrayList<>(pageSize);
+        long n = high - 1;
+        for (; n >= low && records.size() < pageSize; n--) {
+            records.add(mapper.apply(log.read(n)));
+        }
+        // n + 1 is the last record on this page
+        return new LogPage(records, (n >= low) ? Long.toString(n + 1) : null);
+    }
+
+    @Override
+    public void scan(String collection, Consumer<Document> visitor) {
+        Log log = log(collection);
+        long count = log.count;
+        for (long n = 0; n < count; n++) {
+            visitor.accept(log.read(n));
+        }
+    }
+
+    @Override
+    public Document loadSummary() throws IOException {
+        Path file = dir.resolve("summary.json");
+        if (!Files.exists(file)) return null;
+        return Document.parse(new String(Files.readAllBytes(file), StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public void saveSummary(Document summary) throws IOException {
+        // write a new file, then swap it in, so a crash never leaves half a summary
+        Path tmp = dir.resolve("summary.json.tmp");
+        Files.write(tmp, summary.toJson().getBytes(StandardCharsets.UTF_8));
+        Files.move(tmp, dir.resolve("summary.json"),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    @Override
+    public void close() {
+        for (Log log : logs.values()) {
+            log.force();
+        }
+    }
+
+    private Log log(String collection) {
+        Log log = logs.get(collection);
+        if (log == null)
+            throw new IllegalArgumentException("Unknown log collection: " + collection);
+        return log;
+    }
+
+
+    // a field of a fixed-width record
+    private static class Field {
+        final String name;
+        final int maxBytes;  // 0 for a long number
+
+        private Field(String name, int maxBytes) {
+            this.name = name;
+            this.maxBytes = maxBytes;
+        }
+
+        static Field number(String name) {
+            return new Field(name, 0);
+        }
+
+        static Field string(String name, int maxBytes) {
+            return new Field(name, maxBytes);
+        }
+
+        // bytes taken in a record: a long, or a 2-byte length (-1 if absent)
+        // and the string
+        int size() {
+            return (maxBytes == 0) ? 8 : 2 + maxBytes;
+        }
+    }
+
+    // the segment files of one collection
+    private static class Log {
+        final Path dir;
+        final Field[] fields;
+        final int recordSize;  // append time, then the fields
+        final List<MappedByteBuffer> segments = new CopyOnWriteArrayList<>();
+        volatile long count;  // number of records; only records below it are readable
+        long lastTime = 0;  // append time of the newest record; guarded by "this"
+
+        Log(Path dir, Field[] fields) throws IOException {
+            this.dir = dir;
+            this.fields = fields;
+            int size = 8;
+            for (Field f : fields)
+                size += f.size();
+            this.recordSize = size;
+
+            Files.createDirectories(dir);
+            List<Path> files = new ArrayList<>();
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "*.seg")) {
+                for (Path file : stream)
+                    files.add(file);
+            }
+            Collections.sort(files);  // names are zero-padded segment numbers
+            for (Path file : files)
+                segments.add(map(file));
+
+            // find the first unused slot of the last segment
+            long used = 0;
+            if (!segments.isEmpty()) {
+                MappedByteBuffer last = segments.get(segments.size() - 1);
+                int lo = 0, hi = RECORDS_PER_SEGMENT;
+                while (lo < hi) {
+                    int mid = (lo + hi) >>> 1;
+                    if (last.getLong(mid * recordSize) != 0) lo = mid + 1;
+                    else hi = mid;
+                }
+                used = (long) (segments.size() - 1) * RECORDS_PER_SEGMENT + lo;
+            }
+            count = used;
+            if (used > 0)
+                lastTime = time(used - 1);
+        }
+
+        private MappedByteBuffer map(Path file) throws IOException {
+            try (
+                    RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw");
+                    FileChannel channel = raf.getChannel()
+                    ) {
+                // the mapping stays valid after the channel is closed
+                return channel.map(FileChannel.MapMode.READ_WRITE, 0, (long) recordSize * RECORDS_PER_SEGMENT);
+            }
+        }
+
+        synchronized void append(Document record) throws IOException {
+            long n = count;
+            int segment = (int) (n / RECORDS_PER_SEGMENT);
+            if (segment == segments.size())
+                segments.add(map(dir.resolve(String.format("%08d.seg", segment))));
+            ByteBuffer buffer = segments.get(segment).duplicate();
+            int base = (int) (n % RECORDS_PER_SEGMENT) * recordSize;
+
+            int offset = base + 8;
+            for (Field f : fields) {
+                buffer.position(offset);
+                Object value = record.get(f.name);
+                if (f.maxBytes == 0) {
+                    buffer.putLong((value instanceof Number) ? ((Number) value).longValue() : 0);
+                } else if (value == null) {
+                    buffer.putShort((short) -1);  // the field is absent
+                } else {
+                    byte[] bytes = truncate(value.toString(), f.maxBytes);
+                    buffer.putShort((short) bytes.length);
+                    buffer.put(bytes);
+                }
+                offset += f.size();
+            }
+
+            // the append time goes in last: a non-zero time marks the slot as used
+            lastTime = Math.max(Math.max(System.currentTimeMillis(), lastTime), 1);
+            buffer.putLong(base, lastTime);
+            count = n + 1;  // publishes the record to readers
+        }
+
+        Document read(long n) {
+            ByteBuffer buffer = segments.get((int) (n / RECORDS_PER_SEGMENT)).duplicate();
+            int offset = (int) (n % RECORDS_PER_SEGMENT) * recordSize + 8;
+            Document doc = new Document();
+            for (Field f : fields) {
+                buffer.position(offset);
+                if (f.maxBytes == 0) {
+                    doc.append(f.name, buffer.getLong());
+                } else {
+                    int length = buffer.getShort();
+                    if (length >= 0) {
+                        byte[] bytes = new byte[length];
+                        buffer.get(bytes);
+                        doc.append(f.name, new String(bytes, StandardCharsets.UTF_8));
+                    }
+                }
+                offset += f.size();
+            }
+            return doc;
+        }
+
+        long time(long n) {
+            return segments.get((int) (n / RECORDS_PER_SEGMENT))
+                    .getLong((int) (n % RECORDS_PER_SEGMENT) * recordSize);
+        }
+
+        // number of the first record appended at or after the given time
+        long firstAtOrAfter(long millis, long count) {
+            long lo = 0, hi = count;
+            while (lo < hi) {
+                long mid = (lo + hi) >>> 1;
+                if (time(mid) < millis) lo = mid + 1;
+                else hi = mid;
+            }
+            return lo;
+        }
+
+        void force() {
+            for (MappedByteBuffer segment : segments)
+                segment.force();
+        }
+
+        // UTF-8 bytes of a value, cut at a character boundary to fit
+        private static byte[] truncate(String value, int maxBytes) {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            if (bytes.length <= maxBytes) return bytes;
+            int end = maxBytes;
+            while (end > 0 && (bytes[end] & 0xc0) == 0x80)
+                end--;  // don't split a multi-byte character
+            byte[] cut = new byte[end];
+            System.arraycopy(bytes, 0, cut, 0, end);
+            return cut;
+        }
+    }
+
+}
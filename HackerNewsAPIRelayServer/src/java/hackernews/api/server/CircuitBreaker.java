@@ -0,0 +1,173 @@
+package hackernews.api.server;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Circuit breaker guarding the calls to an upstream service.
+ * <p>
+ * States:
+ * <ol>
+ *     <li><strong>Closed:</strong> calls go through. After
+ *         <code>failureThreshold</code> failures in a row, the breaker
+ *         opens.</li>
+ *     <li><strong>Open:</strong> calls are rejected right away, without
+ *         touching the network, for <code>openDuration</code>
+ *         milliseconds.</li>
+ *     <li><strong>Half-open:</strong> a single trial call goes through while
+ *         the others are still rejected. If it succeeds the breaker closes,
+ *         otherwise it opens again for another <code>openDuration</code>.</li>
+ * </ol>
+ * <p>
+ * Listeners are told when the state changes, so an outage can be recorded
+ * once instead of once per failed call.
+ *
+ * @author Stephen Xie &lt;[redacted]@andrew.cmu.edu&gt;
+ */
+public class CircuitBreaker {
+
+    /**
+     * State of the breaker.
+     */
+    public enum State { CLOSED, OPEN, HALF_OPEN }
+
+    /**
+     * Gets notified of state changes.
+     */
+    public interface StateListener {
+        /**
+         * Called after the state has changed, while holding the breaker's
+         * lock; don't block.
+         *
+         * @param from the previous state
+         * @param to the new state
+         */
+        void stateChanged(State from, State to);
+    }
+
+    private final int failureThreshold;  // failures in a row that open the breaker
+    private final long openDuration;  // in milliseconds
+    private final List<StateListener> listeners = new CopyOnWriteArrayList<>();
+
+    private volatile State state = State.CLOSED;  // written while holding "this"
+    private volatile int failures = 0;  // failures in a row; written while holding "this"
+    private volatile long openUntil = 0;  // when the next trial call may go through
+
+    private final AtomicLong openings = new AtomicLong();  // closed -> open transitions
+    private final AtomicLong rejected = new AtomicLong();
+
+
+    /**
+     * @param failureThreshold number of failures in a row that opens the breaker
+     * @param openDuration how long the breaker stays open before a trial
+     *                     call, in milliseconds
+     */
+    public CircuitBreaker(int failureThreshold, long openDuration) {
+        this.failureThreshold = Math.max(1, failureThreshold);
+        this.openDuration = openDuration;
+    }
+
+    /**
+     * Asks for permission to make a call. Every permitted call must be
+     * followed by {@link #onSuccess()} or {@link #onFailure()}.
+     *
+     * @return whether the call may go through
+     */
+    public boolean tryAcquire() {
+        if (state == State.CLOSED)
+            return true;  // fast path, no locking
+
+        synchronized (this) {
+            if (state == State.CLOSED)
+                return true;
+            if (state == State.OPEN && System.currentTimeMillis() >= openUntil) {
+                transition(State.HALF_OPEN);
+                return true;  // this is the trial call
+            }
+        }
+        rejected.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * Reports that a permitted call succeeded.
+     */
+    public void onSuccess() {
+        if (state == State.CLOSED && failures == 0)
+            return;  // fast path; a stale read only delays the reset
+        synchronized (this) {
+            failures = 0;
+            if (state != State.CLOSED)
+                transition(State.CLOSED);
+        }
+    }
+
+    /**
+     * Reports that a permitted call failed.
+     */
+    public synchronized void onFailure() {
+        if (state == State.HALF_OPEN) {
+            open();  // the trial call failed
+        } else if (state == State.CLOSED && ++failures >= failureThreshold) {
+            openings.incrementAndGet();
+            open();
+        }
+    }
+
+    private void open() {
+        openUntil = System.currentTimeMillis() + openDuration;
+        transition(State.OPEN);
+    }
+
+    private void transition(State to) {
+        State from = state;
+        state = to;
+        for (StateListener l : listeners) {
+            l.stateChanged(from, to);
+        }
+    }
+
+    /**
+     * Registers a listener to be notified of state changes.
+     *
+     * @param listener the listener
+     */
+    public void addListener(StateListener listener) {
+        listeners.add(listener);
+    }
+
+    // --- statistics ---------------------------------------------------
+
+    /**
+     * @return the current state
+     */
+    public State getState() {
+        return state;
+    }
+
+    /**
+     * @return milliseconds until the next trial call may go through, or 0 if
+     *         the breaker isn't open
+     */
+    public long getRetryAfter() {
+        if (state != State.OPEN) return 0;
+        return Math.max(0, openUntil - System.currentTimeMillis());
+    }
+
+    /**
+     * @return number of times the breaker has opened after being closed,
+     *         i.e. the number of outages
+     */
+    public long getOpenCount() {
+        return openings.get();
+    }
+
+    /**
+     * @return number of calls rejected without being made
+     */
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+
+}
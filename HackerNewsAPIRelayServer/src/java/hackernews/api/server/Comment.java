@@ -0,0 +1,36 @@
+package hackernews.api.server;
+
+/**
+ * A helper class representing the data structure of a HackerNews comment.
+ * Comments are decoded from the HackerNews API by {@link ItemDecoder}.
+ * 
+ * @author Stephen Xie &lt;[redacted]@andrew.cmu.edu&gt;
+ */
+class Comment extends Item implements Comparable<Comment> {
+    public final long parent;  // ID of the item to which this comment belongs
+    public final String text;  // main comment content
+
+    public Comment(long id, String by, long parent, long time, String text, long[] comments) {
+        super(id, by, time, comments);
+        this.parent = parent;
+        this.text = text;
+    }
+    
+    @Override
+    Comment asStale() {
+        Comment copy = new Comment(id, by, parent, time, text, comments);
+        copy.stale = true;
+        return copy;
+    }
+    
+    @Override
+    public int weight() {
+        return super.weight() + 16 + weight(text);
+    }
+
+    @Override
+    public int compareTo(Comment o) {
+        return (int)(this.time - o.time);
+    }
+    
+}
@@ -0,0 +1,49 @@
+package hackernews.api.server;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The comments of a story, hydrated down to some depth.
+ * <p>
+ * Comment objects are shared through the comment cache, so the tree doesn't
+ * link them together; instead, the hydrated replies of each comment are kept
+ * by the comment's ID. Comments whose replies aren't in the tree are sent
+ * with the reply IDs only.
+ * <p>
+ * A tree is built one level at a time by a single chain of completion
+ * stages, so it needs no locking.
+ * 
+ * @author Stephen Xie &lt;[redacted]@andrew.cmu.edu&gt;
+ */
+class CommentTree {
+    
+    // top-level comments, sorted; nulls (deleted or failed comments) put last
+    final Comment[] comments;
+    // sorted replies of each comment whose replies are hydrated, by comment ID
+    final Map<Long, Comment[]> replies = new HashMap<>();
+    // number of comments in the tree, counting the deleted / failed ones
+    int size;
+    // whether the tree was cut short by the node or time budget
+    boolean truncated = false;
+    // whether any comment in the tree is an expired copy
+    boolean stale = false;
+    
+    CommentTree(Comment[] comments) {
+        this.comments = comments;
+        this.size = comments.length;
+        for (Comment c : comments) {
+            if (c != null && c.stale) stale = true;
+        }
+    }
+    
+    /**
+     * @param comment a comment of this tree
+     * @return hydrated replies of the comment, or null if the replies aren't
+     *         in the tree
+     */
+    Comment[] getReplies(Comment comment) {
+        return replies.get(comment.id);
+    }
+    
+}
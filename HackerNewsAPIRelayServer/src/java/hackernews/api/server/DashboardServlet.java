@@ -1,6 +1,13 @@
 package hackernews.api.server;
 
 import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Map;
 import javax.servlet.RequestDispatcher;
 import javax.servlet.ServletException;
 import javax.servlet.annotation.WebServlet;
@@ -10,6 +17,16 @@ import javax.servlet.http.HttpServletResponse;
 
 /**
  * Controller of the server dashboard.
+ * <p>
+ * The full logs are shown one page at a time. Supported query parameters:
+ * <ul>
+ *     <li><strong>from / to:</strong> only show records logged on or after /
+ *         on or before the given date (yyyy-MM-dd).</li>
+ *     <li><strong>size:</strong> number of records per page and log.</li>
+ *     <li><strong>sq / down / bad / lat:</strong> page cursors of the
+ *         story queries, API down times, malformed requests and query
+ *         latency logs respectively.</li>
+ * </ul>
  * 
  * @author Stephen Xie &lt;[redacted]@andrew.cmu.edu&gt;
  */
@@ -41,6 +58,15 @@ public class DashboardServlet extends HttpServlet {
         if (averageQueryLatency > 0)
             request.setAttribute("avg_q_time", averageQueryLatency);
         
+        // analytics: latency percentiles of making queries to the HackerNews API
+        ArrayList<String[]> percentiles = new ArrayList<>();
+        for (String type : new String[] {"getTopStories", "getStory"}) {
+            percentiles.add(latencyPercentiles(type, "Last hour", 1));
+            percentiles.add(latencyPercentiles(type, "Last 24 hours", 24));
+            percentiles.add(latencyPercentiles(type, "All time", 0));
+        }
+        request.setAttribute("latency_percentiles", percentiles);
+        
         // analytics: ID and the title of the most queried story
         String[] mostFreqStory = logger.getMostQueriedStory();
         if (mostFreqStory != null) {
@@ -49,21 +75,143 @@ public class DashboardServlet extends HttpServlet {
             request.setAttribute("most_freq_cont", mostFreqStory[2]);
         }
         
+        // analytics: most queried stories of the last hour / day / all time
+        ArrayList<String[]> topStories = new ArrayList<>();
+        addTopStories(topStories, "Last hour", 1);
+        addTopStories(topStories, "Last 24 hours", 24);
+        addTopStories(topStories, "All time", 0);
+        request.setAttribute("top_stories", topStories.isEmpty() ? null : topStories);
+        
         // analytics: month-based frequency of HackerNews API service going down
         double hnServiceDownFreq = logger.getHNApiDownFreq();
         request.setAttribute("hn_down_freq", hnServiceDownFreq);
         
-        // get logs
-        request.setAttribute("api_latency", logger.getAllHNAPIQueryLatency());
-        request.setAttribute("story_queried", logger.getAllStoryQueried());
-        request.setAttribute("api_down", logger.getAllHNApiDownTime());
-        request.setAttribute("wrong_reqs", logger.getAllMalformedRequest());
+        // analytics: hit rates of the item caches of the API servlet
+        request.setAttribute("item_caches", getServletContext().getAttribute("itemCaches"));
+        
+        // analytics: how many item fetches were shared with a concurrent one
+        request.setAttribute("item_fetches", getServletContext().getAttribute("itemFetches"));
+        
+        // analytics: requests actually made to the HackerNews API
+        request.setAttribute("upstream_client", getServletContext().getAttribute("upstreamClient"));
+        
+        // analytics: whether the HackerNews API is considered down right now
+        request.setAttribute("circuit_breaker", getServletContext().getAttribute("circuitBreaker"));
+        
+        // analytics: changed items reported by the HackerNews API
+        request.setAttribute("updates_poller", getServletContext().getAttribute("updatesPoller"));
+        
+        // analytics: log records lost before reaching the database
+        request.setAttribute("log_dropped", logger.getDroppedCount());
+        
+        // get logs, one page each
+        int pageSize = 50;
+        try {
+            if (request.getParameter("size") != null)
+                pageSize = Integer.parseInt(request.getParameter("size"));
+        } catch (NumberFormatException e) {
+            // keep the default
+        }
+        long from = parseDate(request.getParameter("from"), 0);
+        long to = parseDate(request.getParameter("to"), 1);  // "to" date is inclusive
+        
+        setLogPage(request, "api_latency", "lat",
+                logger.getHNAPIQueryLatency(request.getParameter("lat"), pageSize, from, to));
+        setLogPage(request, "story_queried", "sq",
+                logger.getStoryQueried(request.getParameter("sq"), pageSize, from, to));
+        setLogPage(request, "api_down", "down",
+                logger.getHNApiDownTime(request.getParameter("down"), pageSize, from, to));
+        setLogPage(request, "wrong_reqs", "bad",
+                logger.getMalformedRequest(request.getParameter("bad"), pageSize, from, to));
         
         // finally, direct to the dashboard view with the necessary parameters
         RequestDispatcher view = request.getRequestDispatcher("dashboard.jsp");
         view.forward(request, response);
     }
 
+    /**
+     * Passes a page of logs to the view: the records as attribute
+     * <code>name</code> (null if there's none), and the link to the next page
+     * as attribute <code>name + "_next"</code> (null if there's none).
+     * 
+     * @param request servlet request
+     * @param name attribute name
+     * @param cursorParam name of the query parameter holding this log's cursor
+     * @param page the page of logs
+     * @throws UnsupportedEncodingException never; UTF-8 is always supported
+     */
+    private void setLogPage(HttpServletRequest request, String name, String cursorParam, LogPage page)
+            throws UnsupportedEncodingException {
+        request.setAttribute(name, page.isEmpty() ? null : page.getRecords());
+        if (page.getNextCursor() == null) return;
+        
+        // same query as this one, with this log's cursor moved to the next page
+        StringBuilder url = new StringBuilder("dashboard?");
+        for (Map.Entry<String, String[]> param : request.getParameterMap().entrySet()) {
+            if (param.getKey().equals(cursorParam)) continue;
+            for (String value : param.getValue()) {
+                url.append(URLEncoder.encode(param.getKey(), "UTF-8")).append('=')
+                        .append(URLEncoder.encode(value, "UTF-8")).append('&');
+            }
+        }
+        url.append(cursorParam).append('=').append(URLEncoder.encode(page.getNextCursor(), "UTF-8"));
+        request.setAttribute(name + "_next", url.toString());
+    }
+    
+    /**
+     * Parses a date parameter into Unix time.
+     * 
+     * @param date date in yyyy-MM-dd format, or null
+     * @param daysAfter number of days to add to the date
+     * @return Unix time of the start of that day, or 0 if the date is absent
+     *         or malformed
+     */
+    private static long parseDate(String date, int daysAfter) {
+        if (date == null || date.isEmpty()) return 0;
+        try {
+            return LocalDate.parse(date).plusDays(daysAfter)
+                    .atStartOfDay(ZoneId.systemDefault()).toEpochSecond();
+        } catch (DateTimeParseException e) {
+            return 0;
+        }
+    }
+    
+    /**
+     * Adds the top 5 most queried stories of a time window as table rows.
+     * 
+     * @param rows rows of arrays of size 5: window, rank, title, id, count
+     * @param window name of the time window
+     * @param hours hours covered by the time window, or 0 for all time
+     */
+    private void addTopStories(ArrayList<String[]> rows, String window, int hours) {
+        int rank = 1;
+        for (SpaceSaving.Entry story : logger.getMostQueriedStories(5, hours)) {
+            rows.add(new String[] {window, Integer.toString(rank++), story.getTitle(),
+                story.getId(), Long.toString(story.getCount())});
+        }
+    }
+    
+    /**
+     * Reads the latency percentiles of a type of query.
+     * 
+     * @param type query type
+     * @param window name of the time window
+     * @param hours hours covered by the time window, or 0 for all time
+     * @return an array of size 7: type, window, number of queries, p50, p90,
+     *         p99 and p99.9 in milliseconds ("-" if there's no query)
+     */
+    private String[] latencyPercentiles(String type, String window, int hours) {
+        LatencyHistogram histogram = logger.getLatencyHistogram(type, hours);
+        long count = histogram.getCount();
+        String[] row = {type, window, Long.toString(count), "-", "-", "-", "-"};
+        if (count > 0) {
+            double[] ps = {50, 90, 99, 99.9};
+            for (int i = 0; i < ps.length; i++)
+                row[3 + i] = Long.toString(histogram.getValueAtPercentile(ps[i]));
+        }
+        return row;
+    }
+    
     
     /**
      * Handles the HTTP <code>GET</code> method.
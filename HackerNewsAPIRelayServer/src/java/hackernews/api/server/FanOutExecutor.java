@@ -0,0 +1,200 @@
+package hackernews.api.server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A bounded-concurrency fan-out engine for issuing many independent upstream
+ * requests at the same time.
+ * <p>
+ * All tasks handed to {@link #invokeAll(List)} are run in parallel on a fixed
+ * size worker pool, so at most <code>maxConcurrency</code> upstream requests
+ * are in flight at any time no matter how many servlet threads are fanning
+ * out. A single batch can be capped further with
+ * {@link #submitAll(List, int)} so that one huge batch (e.g. a story with
+ * hundreds of comments) doesn't starve the others of workers.
+ * <p>
+ * {@link #submit(Callable)} and {@link #submitAll(List, int)} never block the
+ * calling thread; they return futures that complete once the work is done, so
+ * request threads can be released while the upstream requests are running.
+ * <p>
+ * Results are returned in the same order as the tasks were given; a task that
+ * fails leaves a <code>null</code> at its position instead of failing the
+ * whole batch.
+ *
+ * @author Stephen Xie &lt;[redacted]@andrew.cmu.edu&gt;
+ */
+public class FanOutExecutor {
+
+    private final ExecutorService pool;
+    private final int maxConcurrency;
+
+
+    /**
+     * @param maxConcurrency maximum number of tasks allowed to run at the same time
+     * @param name prefix of the worker thread names
+     */
+    public FanOutExecutor(int maxConcurrency, String name) {
+        if (maxConcurrency < 1)
+            throw new IllegalArgumentException("maxConcurrency must be positive: " + maxConcurrency);
+        this.maxConcurrency = maxConcurrency;
+        this.pool = Executors.newFixedThreadPool(maxConcurrency, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, name + "-" + count.incrementAndGet());
+                t.setDaemon(true);  // never keep the container from shutting down
+                return t;
+            }
+        });
+    }
+
+    /**
+     * Runs all the given tasks in parallel and waits for all of them to finish.
+     *
+     * @param <T> result type of the tasks
+     * @param tasks tasks to be run
+     * @return results of the tasks, in the same order as <code>tasks</code>;
+     *         a task that throws leaves <code>null</code> at its position
+     * @throws InterruptedException if the calling thread is interrupted while waiting
+     */
+    public <T> List<T> invokeAll(List<? extends Callable<T>> tasks) throws InterruptedException {
+        return collect(pool.invokeAll(tasks));
+    }
+
+    /**
+     * Runs a single task on the worker pool without blocking the caller.
+     *
+     * @param <T> result type of the task
+     * @param task task to be run
+     * @return future completed with the task's result, or completed
+     *         exceptionally with whatever the task threw
+     */
+    public <T> CompletableFuture<T> submit(Callable<T> task) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        try {
+            pool.execute(() -> {
+                try {
+                    future.complete(task.call());
+                } catch (Throwable ex) {
+                    future.completeExceptionally(ex);
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            future.completeExceptionally(ex);  // shutting down
+        }
+        return future;
+    }
+
+    /**
+     * Runs the given tasks in parallel, but with no more than
+     * <code>limit</code> of them running at the same time, without blocking
+     * the caller.
+     * <p>
+     * The batch is split into <code>limit</code> lanes; each lane takes the
+     * next task that hasn't been started yet whenever it finishes one, and
+     * goes back to the end of the pool's queue in between so that other
+     * batches get their turn.
+     *
+     * @param <T> result type of the tasks
+     * @param tasks tasks to be run
+     * @param limit maximum number of tasks of this batch allowed to run at the
+     *              same time
+     * @return future completed with the results of the tasks, in the same
+     *         order as <code>tasks</code>; a task that throws leaves
+     *         <code>null</code> at its position
+     */
+    public <T> CompletableFuture<List<T>> submitAll(List<? extends Callable<T>> tasks, int limit) {
+        int n = tasks.size();
+        AtomicReferenceArray<T> results = new AtomicReferenceArray<>(n);
+        AtomicInteger next = new AtomicInteger();  // index of the next task to start
+
+        int lanes = Math.max(1, Math.min(limit, n));
+        CompletableFuture<?>[] laneDone = new CompletableFuture<?>[lanes];
+        for (int i = 0; i < lanes; i++) {
+            CompletableFuture<Void> done = new CompletableFuture<>();
+            laneDone[i] = done;
+            runLane(tasks, results, next, done);
+        }
+
+        return CompletableFuture.allOf(laneDone).thenApply(v -> {
+            List<T> list = new ArrayList<>(n);
+            for (int i = 0; i < n; i++)
+                list.add(results.get(i));
+            return list;
+        });
+    }
+
+    // runs the next unstarted task of a batch, then queues itself up again
+    private <T> void runLane(List<? extends Callable<T>> tasks, AtomicReferenceArray<T> results,
+            AtomicInteger next, CompletableFuture<Void> done) {
+        try {
+            pool.execute(() -> {
+                int i = next.getAndIncrement();
+                if (i >= tasks.size()) {
+                    done.complete(null);
+                    return;
+                }
+                try {
+                    results.set(i, tasks.get(i).call());
+                } catch (Exception ex) {
+                    Logger.getLogger(FanOutExecutor.class.getName()).log(Level.WARNING, null, ex);
+                }
+                runLane(tasks, results, next, done);
+            });
+        } catch (RejectedExecutionException ex) {
+            done.completeExceptionally(ex);  // shutting down
+        }
+    }
+
+    // waits for all the futures in order, turning failures into nulls
+    private <T> List<T> collect(List<Future<T>> futures) throws InterruptedException {
+        List<T> results = new ArrayList<>(futures.size());
+        for (Future<T> f : futures) {
+            try {
+                results.add(f.get());
+            } catch (ExecutionException ex) {
+                Logger.getLogger(FanOutExecutor.class.getName()).log(Level.WARNING, null, ex.getCause());
+                results.add(null);
+            }
+        }
+        return results;
+    }
+
+    /**
+     * @return maximum number of tasks allowed to run at the same time
+     */
+    public int getMaxConcurrency() {
+        return maxConcurrency;
+    }
+
+    /**
+     * Stops accepting new tasks and waits a short while for the running ones
+     * to finish.
+     */
+    public void shutdown() {
+        pool.shutdown();
+        try {
+            if (!pool.awaitTermination(5, TimeUnit.SECONDS))
+                pool.shutdownNow();
+        } catch (InterruptedException ex) {
+            pool.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+}
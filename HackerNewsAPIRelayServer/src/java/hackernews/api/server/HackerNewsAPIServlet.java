@@ -1,46 +1,205 @@
 package hackernews.api.server;
 
-import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
-import java.net.URL;
-import java.net.URLConnection;
+import java.io.InterruptedIOException;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
 import javax.servlet.ServletException;
+import javax.servlet.annotation.WebInitParam;
 import javax.servlet.annotation.WebServlet;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
+import org.json.JSONWriter;
 
 /**
  * API servlet for retrieving HackerNews top stories and details.
  * <p>
  * Supported queries:
  * <ol>
- *     <li><strong>/top-stories:</strong> get ids and titles of the latest top stories.</li>
- *     <li><strong>/story/{id}:</strong> get content of a specified story.</li>
+ *     <li><strong>/top-stories?offset={offset}&amp;limit={limit}:</strong> get
+ *         ids and titles of the latest top stories, one page at a time; both
+ *         parameters are optional.</li>
+ *     <li><strong>/story/{id}?depth={depth}:</strong> get content of a
+ *         specified story, with its comment tree hydrated <code>depth</code>
+ *         levels deep (default 1: top-level comments only, replies as IDs).</li>
  * </ol>
  * <p>
+ * Init parameters:
+ * <ul>
+ *     <li><strong>upstreamBaseUrl:</strong> base URL of the Hacker News API,
+ *         e.g. to point the relay at a local stand-in for load tests; the
+ *         system property <code>hackernews.upstreamBaseUrl</code>, if set,
+ *         takes precedence.</li>
+ *     <li><strong>fanOutConcurrency:</strong> maximum number of story details
+ *         fetched from the Hacker News API at the same time. Idle connections
+ *         to the API are kept for reuse up to the JVM's
+ *         <code>http.maxConnections</code> (5 by default), which is container
+ *         configuration: start it with at least
+ *         <code>-Dhttp.maxConnections=</code>this value.</li>
+ *     <li><strong>commentConcurrency:</strong> maximum number of comments of
+ *         a single story fetched at the same time.</li>
+ *     <li><strong>maxCommentDepth:</strong> maximum <code>depth</code> of a
+ *         story query.</li>
+ *     <li><strong>commentTreeMaxNodes / commentTreeTimeBudget:</strong>
+ *         maximum number of comments in the tree of a story query, and
+ *         milliseconds after which no further level of replies is fetched;
+ *         the top-level comments are always fetched in full.</li>
+ *     <li><strong>storyCacheTtl / commentCacheTtl:</strong> seconds a fetched
+ *         story / comment is kept in the item cache, unless it's reported
+ *         changed before that.</li>
+ *     <li><strong>negativeCacheTtl:</strong> seconds a story / comment found
+ *         deleted or missing is remembered as such, so that requests for it
+ *         don't each go to the Hacker News API; 0 turns this off.</li>
+ *     <li><strong>updatesPoll:</strong> seconds between two polls of the
+ *         changed items feed of the Hacker News API; cached items reported
+ *         changed are refetched on their next request. 0 turns polling off,
+ *         in which case the cache TTLs should be lowered.</li>
+ *     <li><strong>storyCacheMaxKB / commentCacheMaxKB:</strong> approximate
+ *         memory budget of the story / comment cache, in kilobytes.</li>
+ *     <li><strong>responseCacheTtl:</strong> seconds a response is kept in
+ *         the response cache, and may be reused by clients
+ *         (<code>Cache-Control: max-age</code>).</li>
+ *     <li><strong>responseCacheMaxKB:</strong> approximate memory budget of
+ *         the response cache, in kilobytes.</li>
+ *     <li><strong>topStoriesRefresh:</strong> seconds between two background
+ *         refreshes of the top stories list.</li>
+ *     <li><strong>prefetchStories:</strong> number of top stories whose
+ *         details and top-level comments are fetched ahead of time after
+ *         each refresh of the list; 0 turns prefetching off.</li>
+ *     <li><strong>prefetchConcurrency / prefetchBudget:</strong> maximum
+ *         number of prefetches running at the same time, and of requests to
+ *         the Hacker News API made by the prefetches after one refresh.</li>
+ *     <li><strong>topStoriesPageSize / topStoriesMaxPageSize:</strong>
+ *         default / maximum number of top stories per page.</li>
+ *     <li><strong>upstreamConnectTimeout / upstreamReadTimeout:</strong>
+ *         connect / read timeout of requests to the Hacker News API, in
+ *         milliseconds.</li>
+ *     <li><strong>circuitFailureThreshold / circuitOpenSeconds:</strong>
+ *         number of failed requests to the Hacker News API in a row after
+ *         which it's considered down, and seconds until it's tried again.
+ *         Meanwhile, the last cached stories and comments are served, marked
+ *         stale.</li>
+ *     <li><strong>asyncRequests:</strong> whether requests are handled
+ *         asynchronously, i.e. the container thread is released while the
+ *         upstream requests are running.</li>
+ *     <li><strong>asyncTimeout:</strong> seconds an asynchronous request may
+ *         take before it's answered with <code>504</code>.</li>
+ * </ul>
+ * <p>
+ * Every response carries a strong <code>ETag</code> (a hash of its bytes); a
+ * request whose <code>If-None-Match</code> lists it is answered with
+ * <code>304</code> and no body. Responses are kept in a short-lived response
+ * cache, and the first page of top stories is built along with each
+ * refresh, so an unchanged refresh usually costs neither upstream requests
+ * nor JSON building.
+ * <p>
+ * Responses built from outdated data (the Hacker News API being down) carry
+ * a <code>Warning: 110</code> header and <code>"stale": true</code> on the
+ * affected stories. Requests that can't be answered at all get
+ * <code>503</code> with <code>Retry-After</code>: the API is unreachable and
+ * nothing is cached for them, whether or not the circuit breaker has opened.
+ * <p>
  * <strong>Additional note:</strong> I still don't get why we're not allowed to
  * use JAX-RS; using annotations to direct resource access is much simpler and
  * less prone to error than writing redirections ourselves in a plain servlet.
  * 
  * @author Stephen Xie &lt;[redacted]@andrew.cmu.edu&gt;
  */
-@WebServlet(name = "HackerNewsAPIServlet", urlPatterns = {"/hackernews-api/*"})
+@WebServlet(name = "HackerNewsAPIServlet", urlPatterns = {"/hackernews-api/*"},
+        asyncSupported = true,
+        initParams = {
+            @WebInitParam(name = "upstreamBaseUrl", value = "https://hacker-news.firebaseio.com/v0/"),
+            @WebInitParam(name = "fanOutConcurrency", value = "20"),
+            @WebInitParam(name = "commentConcurrency", value = "10"),
+            @WebInitParam(name = "maxCommentDepth", value = "10"),
+            @WebInitParam(name = "commentTreeMaxNodes", value = "2000"),
+            @WebInitParam(name = "commentTreeTimeBudget", value = "5000"),
+            @WebInitParam(name = "storyCacheTtl", value = "600"),
+            @WebInitParam(name = "commentCacheTtl", value = "3600"),
+            @WebInitParam(name = "negativeCacheTtl", value = "60"),
+            @WebInitParam(name = "updatesPoll", value = "30"),
+            @WebInitParam(name = "storyCacheMaxKB", value = "4096"),
+            @WebInitParam(name = "commentCacheMaxKB", value = "32768"),
+            @WebInitParam(name = "responseCacheTtl", value = "10"),
+            @WebInitParam(name = "responseCacheMaxKB", value = "8192"),
+            @WebInitParam(name = "topStoriesRefresh", value = "30"),
+            @WebInitParam(name = "prefetchStories", value = "30"),
+            @WebInitParam(name = "prefetchConcurrency", value = "4"),
+            @WebInitParam(name = "prefetchBudget", value = "1000"),
+            @WebInitParam(name = "topStoriesPageSize", value = "20"),
+            @WebInitParam(name = "topStoriesMaxPageSize", value = "100"),
+            @WebInitParam(name = "upstreamConnectTimeout", value = "5000"),
+            @WebInitParam(name = "upstreamReadTimeout", value = "10000"),
+            @WebInitParam(name = "circuitFailureThreshold", value = "5"),
+            @WebInitParam(name = "circuitOpenSeconds", value = "30"),
+            @WebInitParam(name = "asyncRequests", value = "true"),
+            @WebInitParam(name = "asyncTimeout", value = "30")
+        })
 public class HackerNewsAPIServlet extends HttpServlet {
     
-    private static final String topStoryURL = "https://hacker-news.firebaseio.com/v0/topstories.json";
-    private static final String itemBaseURL = "https://hacker-news.firebaseio.com/v0/item/";
+    private String topStoryURL;  // e.g. https://hacker-news.firebaseio.com/v0/topstories.json
+    private String itemBaseURL;  // e.g. https://hacker-news.firebaseio.com/v0/item/
+    private String updatesURL;  // e.g. https://hacker-news.firebaseio.com/v0/updates.json
     
     private APIUsageLogger logger;  // logger to the remote MongoDB database
+    
+    private UpstreamClient upstream;  // makes all requests to the HackerNews API
+    private CircuitBreaker breaker;  // stops the requests while the HackerNews API is down
+    private FanOutExecutor fanOut;  // runs the upstream item fetches in parallel
+    private int commentConcurrency;  // per-story cap of parallel comment fetches
+    private int maxCommentDepth;
+    private int commentTreeMaxNodes;  // per-story cap of comments in the tree
+    private long commentTreeTimeBudget;  // in milliseconds
+    
+    // caches of recently fetched items; comments change far less often than
+    // stories (whose kids list grows all the time), so they live longer
+    private ItemCache<Long, Story> storyCache;
+    private ItemCache<Long, Comment> commentCache;
+    // returned by the caches for the items known not to exist
+    private static final Story NO_STORY = new Story(-1, null, null, 0, null, null);
+    private static final Comment NO_COMMENT = new Comment(-1, null, -1, 0, null, null);
+    private UpdatesPoller updatesPoller;  // expires changed items early; null if off
+    
+    // recently sent responses, by request; see cacheKey()
+    private ItemCache<String, RenderedResponse> responseCache;
+    private int responseCacheTtl;  // in seconds
+    
+    // shares one upstream fetch among concurrent requests for the same item
+    private final SingleFlight<Long, Item> itemFetches = new SingleFlight<>();
+    
+    // the full top stories list, with its first page of details, rebuilt in
+    // the background and served from memory
+    private RefreshingSnapshot<TopStories> topStories;
+    private int topStoriesPageSize;  // default number of stories per page
+    private int topStoriesMaxPageSize;
+    
+    // warms the item caches for the top stories after each refresh
+    private int prefetchStories;
+    private int prefetchConcurrency;
+    private int prefetchBudget;  // upstream requests per refresh
+    private final AtomicBoolean prefetching = new AtomicBoolean(false);
+    
+    private boolean asyncRequests;  // whether to release container threads while waiting
+    private long asyncTimeout;  // in milliseconds
 
     @Override
     public void init() throws ServletException {
@@ -48,279 +207,672 @@ public class HackerNewsAPIServlet extends HttpServlet {
         
         // initialize the logger service
         logger = APIUsageLogger.getInstance();
+        
+        String baseUrl = System.getProperty("hackernews.upstreamBaseUrl", getInitParameter("upstreamBaseUrl"));
+        if (baseUrl == null)
+            baseUrl = "https://hacker-news.firebaseio.com/v0/";
+        if (!baseUrl.endsWith("/"))
+            baseUrl += "/";
+        topStoryURL = baseUrl + "topstories.json";
+        itemBaseURL = baseUrl + "item/";
+        updatesURL = baseUrl + "updates.json";
+        
+        breaker = new CircuitBreaker(getIntParameter("circuitFailureThreshold", 5),
+                getIntParameter("circuitOpenSeconds", 30) * 1000L);
+        breaker.addListener(this::upstreamStateChanged);
+        upstream = new UpstreamClient(
+                getIntParameter("upstreamConnectTimeout", 5000),
+                getIntParameter("upstreamReadTimeout", 10000),
+                breaker);
+        int fanOutConcurrency = getIntParameter("fanOutConcurrency", 20);
+        if (UpstreamClient.getMaxIdleConnections() < fanOutConcurrency)
+            Logger.getLogger(HackerNewsAPIServlet.class.getName()).log(Level.WARNING,
+                    "http.maxConnections is {0}, below fanOutConcurrency ({1}); not all "
+                    + "connections to the Hacker News API will be reused. Start the container "
+                    + "with -Dhttp.maxConnections={1}.",
+                    new Object[]{Integer.toString(UpstreamClient.getMaxIdleConnections()),
+                        Integer.toString(fanOutConcurrency)});  // no digit grouping
+        fanOut = new FanOutExecutor(fanOutConcurrency, "hn-fanout");
+        commentConcurrency = getIntParameter("commentConcurrency", 10);
+        maxCommentDepth = getIntParameter("maxCommentDepth", 10);
+        commentTreeMaxNodes = getIntParameter("commentTreeMaxNodes", 2000);
+        commentTreeTimeBudget = getIntParameter("commentTreeTimeBudget", 5000);
+        
+        long negativeCacheTtl = getIntParameter("negativeCacheTtl", 60) * 1000L;
+        storyCache = new ItemCache<>("Story",
+                getIntParameter("storyCacheMaxKB", 4096) * 1024L,
+                getIntParameter("storyCacheTtl", 600) * 1000L,
+                negativeCacheTtl,
+                Story::weight);
+        commentCache = new ItemCache<>("Comment",
+                getIntParameter("commentCacheMaxKB", 32768) * 1024L,
+                getIntParameter("commentCacheTtl", 3600) * 1000L,
+                negativeCacheTtl,
+                Comment::weight);
+        responseCacheTtl = getIntParameter("responseCacheTtl", 10);
+        responseCache = new ItemCache<>("Response",
+                getIntParameter("responseCacheMaxKB", 8192) * 1024L,
+                responseCacheTtl * 1000L,
+                RenderedResponse::weight);
+        // share the cache statistics with the dashboard
+        getServletContext().setAttribute("itemCaches", Arrays.asList(storyCache, commentCache, responseCache));
+        getServletContext().setAttribute("itemFetches", itemFetches);
+        getServletContext().setAttribute("upstreamClient", upstream);
+        getServletContext().setAttribute("circuitBreaker", breaker);
+        
+        int updatesPoll = getIntParameter("updatesPoll", 30);
+        if (updatesPoll > 0) {
+            updatesPoller = new UpdatesPoller(upstream, updatesURL, updatesPoll * 1000L, this::itemsChanged);
+            updatesPoller.start();
+            getServletContext().setAttribute("updatesPoller", updatesPoller);
+        }
+        
+        topStoriesPageSize = getIntParameter("topStoriesPageSize", 20);
+        topStoriesMaxPageSize = getIntParameter("topStoriesMaxPageSize", 100);
+        prefetchStories = getIntParameter("prefetchStories", 30);
+        prefetchConcurrency = getIntParameter("prefetchConcurrency", 4);
+        prefetchBudget = getIntParameter("prefetchBudget", 1000);
+        topStories = new RefreshingSnapshot<>("top-stories", this::loadTopStories,
+                getIntParameter("topStoriesRefresh", 30) * 1000L);
+        topStories.start();
+        
+        asyncRequests = Boolean.parseBoolean(getInitParameter("asyncRequests"));
+        asyncTimeout = getIntParameter("asyncTimeout", 30) * 1000L;
+    }
+    
+    @Override
+    public void destroy() {
+        topStories.stop();
+        if (updatesPoller != null)
+            updatesPoller.stop();
+        fanOut.shutdown();
+        super.destroy();
+    }
+    
+    /**
+     * Reads an integer init parameter of this servlet.
+     * 
+     * @param name name of the init parameter
+     * @param defaultValue value to be used if the parameter is absent or malformed
+     * @return value of the init parameter
+     */
+    private int getIntParameter(String name, int defaultValue) {
+        String value = getInitParameter(name);
+        if (value == null) return defaultValue;
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            Logger.getLogger(HackerNewsAPIServlet.class.getName()).log(Level.WARNING,
+                    "Malformed init parameter {0}: {1}", new Object[] {name, value});
+            return defaultValue;
+        }
+    }
+    
+    // records an outage once, when the circuit breaker opens, rather than
+    // on every failed request; called with the breaker's lock held, so the
+    // record is handed to a fan-out worker, as the logger may block when its
+    // queue is full
+    private void upstreamStateChanged(CircuitBreaker.State from, CircuitBreaker.State to) {
+        Logger log = Logger.getLogger(HackerNewsAPIServlet.class.getName());
+        if (from == CircuitBreaker.State.CLOSED && to == CircuitBreaker.State.OPEN) {
+            log.warning("HackerNews API is down; serving cached data");
+            fanOut.submit(() -> {
+                logger.logHNApiDown();
+                return null;
+            });
+        } else if (to == CircuitBreaker.State.CLOSED) {
+            log.info("HackerNews API is back up");
+        }
+    }
+    
+    /**
+     * Expires the cached copies of the given items, and drops the cached
+     * responses of the stories they belong to; the next request fetches them
+     * again.
+     * 
+     * @param ids IDs of changed items, reported by the changed items feed
+     */
+    private void itemsChanged(long[] ids) {
+        for (long id : ids) {
+            if (storyCache.expire(id) != null) {
+                dropStoryResponses(id);
+                continue;
+            }
+            // go up the comment's ancestors to its story, as far as they're
+            // cached; a response with this comment is no deeper than that
+            Comment comment = commentCache.expire(id);
+            for (int i = 0; comment != null && i < maxCommentDepth; i++) {
+                if (storyCache.peek(comment.parent) != null) {
+                    dropStoryResponses(comment.parent);
+                    break;
+                }
+                comment = commentCache.peek(comment.parent);
+            }
+        }
+    }
+    
+    // drops the cached responses of a story, at every depth
+    private void dropStoryResponses(long id) {
+        for (int depth = 1; depth <= maxCommentDepth; depth++)
+            responseCache.invalidate(cacheKey("story/" + id, depth));
     }
     
     
     // --- Model ------------------------------------------------------------------------------
 
     /**
-     * This returns a JSON string containing all the top story IDs as keys and
-     * their respective titles as values.
+     * This returns a JSON string containing a page of the top story IDs as
+     * keys and their respective titles as values.
+     * <p>
+     * The full list of IDs is served from the latest background-refreshed
+     * snapshot, and so is the first page of details; only the very first
+     * request(s) after startup wait for it to be built. Details of any other
+     * page are fetched on request, so each request fetches at most one page
+     * of stories from the HackerNews API.
      * 
+     * If the list can't be refreshed, the previous one is served, marked
+     * stale.
+     * 
+     * @param offset number of top stories to skip
      * @param limit maximum number of stories to be returned
-     * @return the JSON string in this format: [{"id": "...", "title": "...", "by": "..."}]
+     * @return future of the JSON string in this format:
+     *         [{"id": "...", "title": "...", "by": "..."}]; empty past the
+     *         end of the list; fails if there has never been a list
      */
-    private String getTopStories(int limit) {
-        String topStories;
-        try {
-            long startTime = System.currentTimeMillis();
-            topStories = fetch(topStoryURL);
-            logger.logTimeUsed2GetTopStories(System.currentTimeMillis() - startTime);
-            
-        } catch (IOException ex) {
-            Logger.getLogger(HackerNewsAPIServlet.class.getName()).log(Level.SEVERE, null, ex);
-            logger.logHNApiDown();
-            return "Server Error: " + ex.getMessage();
-        }
+    private CompletableFuture<RenderedResponse> getTopStories(int offset, int limit) {
+        return topStories.getAsync()
+                .thenCompose(top -> {
+                    if (offset == 0 && limit == topStoriesPageSize) {
+                        if (!topStories.isStale())
+                            return CompletableFuture.completedFuture(top.firstPage);
+                        return CompletableFuture.completedFuture(top.staleFirstPage());
+                    }
+                    return fanOut.submitAll(storyTasks(top.ids, offset, limit), fanOut.getMaxConcurrency())
+                            .thenApply(stories -> renderStoryList(stories, topStories.isStale()));
+                });
+    }
+    
+    /**
+     * Fetches the latest top story IDs from the HackerNews API, and the
+     * details of the first page of them.
+     * 
+     * @return the top stories
+     * @throws IOException if the top stories list can't be fetched
+     * @throws InterruptedException if interrupted while waiting for story details
+     */
+    private TopStories loadTopStories() throws IOException, InterruptedException {
+        long startTime = System.currentTimeMillis();
+        // all story IDs, read as they come in
+        long[] ids = upstream.get(topStoryURL, body -> new JsonReader(body).nextLongArray());
+        logger.logTimeUsed2GetTopStories(System.currentTimeMillis() - startTime);
+        if (ids == null)
+            ids = new long[0];
         
-        // the JSON object of which the string representation to be returned
-        JSONArray response = new JSONArray();
+        // then get title and author of the first page of stories at the same
+        // time; results come back in the original ranking order
+        List<Story> stories = fanOut.invokeAll(storyTasks(ids, 0, topStoriesPageSize));
+        prefetch(ids);
+        return new TopStories(ids, renderStoryList(stories, false));
+    }
+    
+    /**
+     * Warms the item caches for the top stories, so that the first request
+     * for one of them is served from memory: fetches the details and the
+     * top-level comments of the first <code>prefetchStories</code> stories,
+     * skipping whatever is cached already.
+     * <p>
+     * Runs in the background, at most <code>prefetchConcurrency</code>
+     * fetches at a time so that requests aren't crowded out of the fan-out
+     * pool, and stops after <code>prefetchBudget</code> upstream requests.
+     * Nothing is prefetched while the previous round is still running or
+     * the HackerNews API is down.
+     * 
+     * @param ids the top story IDs, in ranking order
+     */
+    private void prefetch(long[] ids) {
+        if (prefetchStories <= 0 || breaker.getState() != CircuitBreaker.State.CLOSED)
+            return;
+        if (!prefetching.compareAndSet(false, true))
+            return;
         
-        // extract all story IDs
-        JSONArray jsonArr = new JSONArray(topStories);
-        for (int i = 0; i < jsonArr.length() && i < limit; i++) {
-            String id = Long.toString(jsonArr.getLong(i));
-            // and get title and author of each story
-            Story story = getStory(id);
-            response.put(new JSONObject()
-                    .put("id", id)
-                    .put("title", story.title)
-                    .put("by", story.by)
-                    .put("time", story.time)
-            );
-            
+        AtomicInteger budget = new AtomicInteger(prefetchBudget);
+        List<Callable<Story>> stories = new ArrayList<>();
+        for (int i = 0; i < ids.length && i < prefetchStories; i++) {
+            long id = ids[i];
+            stories.add(() -> {
+                if (storyCache.isCached(id))
+                    return storyCache.peek(id);  // still needs its comments
+                return (budget.getAndDecrement() > 0) ? getListedStory(id) : null;
+            });
         }
+        fanOut.submitAll(stories, prefetchConcurrency)
+                .thenCompose(fetched -> {
+                    List<Callable<Comment>> comments = new ArrayList<>();
+                    for (Story story : fetched) {
+                        if (story == null || story.comments == null) continue;
+                        for (long id : story.comments) {
+                            comments.add(() -> (!commentCache.isCached(id) && budget.getAndDecrement() > 0)
+                                    ? getComment(id) : null);
+                        }
+                    }
+                    return fanOut.submitAll(comments, prefetchConcurrency);
+                })
+                .whenComplete((comments, ex) -> prefetching.set(false));
+    }
+    
+    // tasks fetching the details of a page of stories
+    private List<Callable<Story>> storyTasks(long[] ids, int offset, int limit) {
+        List<Callable<Story>> tasks = new ArrayList<>();
+        for (int i = offset; i < ids.length && i < offset + limit; i++) {
+            long id = ids[i];
+            tasks.add(() -> getListedStory(id));
+        }
+        return tasks;
+    }
+    
+    /**
+     * Builds the JSON string of {@link #getTopStories(int, int)}.
+     * 
+     * @param stories the stories, in ranking order; null for the ones that
+     *                failed to load
+     * @return the JSON string in this format: [{"id": "...", "title": "...", "by": "..."}];
+     *         "stale": true is added to stories served from an expired copy
+     */
+    private static String writeStoryList(List<Story> stories) {
+        StringBuilder response = new StringBuilder(128 * stories.size() + 2);
+        JSONWriter json = new JSONWriter(response).array();
+        for (Story story : stories) {
+            if (story == null) continue;  // failed to fetch this story
+            json.object()
+                    .key("id").value(Long.toString(story.id))
+                    .key("title").value(story.title)
+                    .key("by").value(story.by)
+                    .key("time").value(story.time);
+            if (story.stale)
+                json.key("stale").value(true);
+            json.endObject();
+        }
+        json.endArray();
         
         return response.toString();
+    }
+    
+    // renders a page of stories; it's partial if any of them failed to load
+    private static RenderedResponse renderStoryList(List<Story> stories, boolean staleList) {
+        boolean stale = staleList, partial = false;
+        for (Story story : stories) {
+            if (story == null) partial = true;
+            else if (story.stale) stale = true;
+        }
+        String json = writeStoryList(stories);
+        return render(out -> out.append(json), stale, partial);
+    }
+    
+    // the top story IDs, in ranking order, with the response of their first page
+    private static class TopStories {
+        final long[] ids;
+        final RenderedResponse firstPage;
+        private volatile RenderedResponse staleFirstPage;  // made on first use
+        
+        TopStories(long[] ids, RenderedResponse firstPage) {
+            this.ids = ids;
+            this.firstPage = firstPage;
+        }
         
+        // the first page marked stale, made once per list rather than per
+        // request, so its ETag and compressed copies are only computed once;
+        // two threads may both make it, which is harmless
+        RenderedResponse staleFirstPage() {
+            RenderedResponse page = staleFirstPage;
+            if (page == null) {
+                page = new RenderedResponse(firstPage.body, true, firstPage.partial);
+                staleFirstPage = page;
+            }
+            return page;
+        }
     }
     
     /**
      * This returns a JSON string containing all the top story IDs as keys and
      * titles as values.
+     * <p>
+     * None of the upstream requests are made on the calling thread; the
+     * returned future is completed once the story and its comment tree are
+     * in. The comment tree is hydrated breadth first, see
+     * {@link #getReplies(CommentTree, List, int, long)}. No JSON string or
+     * tree is built: the fields are encoded straight into the response bytes,
+     * see {@link #writeStory(Appendable, long, Story, CommentTree)}.
      * 
      * @param id
-     * @return the JSON string in this format: {"id": "...", "title": "...",
+     * @param depth number of comment levels to hydrate, at least 1
+     * @return future of the response body writing the JSON string in this
+     *         format: {"id": "...", "title": "...",
      *         "by": "...", "url": "...", "time": ..., "comments": [
      *             {"id": "...", "text": "...", "by": "...", "time": ..., "comments": [...]}
-     *         ]}
+     *         ]}; "comments" of a comment holds reply objects if its replies
+     *         are hydrated, reply IDs otherwise; "truncated": true is added if
+     *         the tree was cut short by the node or time budget, and
+     *         "stale": true if the story or any comment is an expired copy;
+     *         empty if the story doesn't exist; fails with an IOException if
+     *         the story can't be fetched and isn't cached
+     */
+    private CompletableFuture<RenderedResponse> viewStory(long id, int depth) {
+        long deadline = System.currentTimeMillis() + commentTreeTimeBudget;
+        return fanOut.submit(() -> getStory(id))
+                .thenCompose(story -> {
+                    if (story == null || story.comments == null)
+                        return CompletableFuture.completedFuture(storyBody(id, story, null));
+                    // get an array of comment details for each comment id
+                    return getComments(story.comments)
+                            .thenCompose(comments -> {
+                                CommentTree tree = new CommentTree(comments);
+                                if (depth <= 1)
+                                    return CompletableFuture.completedFuture(tree);
+                                return getReplies(tree, Arrays.asList(comments), depth - 1, deadline);
+                            })
+                            .thenApply(tree -> storyBody(id, story, tree));
+                });
+    }
+    
+    // logs the story query and renders the response
+    private RenderedResponse storyBody(long id, Story story, CommentTree comments) {
+        if (story != null)
+            logger.logStoryQueried(Long.toString(id), story.title);
+        return renderStory(id, story, comments);
+    }
+    
+    /**
+     * Renders the response of {@link #viewStory(long, int)}: writes it with
+     * {@link #writeStory(Appendable, long, Story, CommentTree)} and encodes
+     * it to bytes, with its entity tag.
+     * 
+     * @param id Story ID
+     * @param story the story details, or null if not available
+     * @param comments the comment tree, or null if there's no comment
+     * @return the rendered response
      */
-    private String viewStory(String id) {
-        // the JSON object of which the string representation to be returned
-        JSONObject jsObj = new JSONObject();
+    static RenderedResponse renderStory(long id, Story story, CommentTree comments) {
+        boolean stale = (story != null && story.stale) || (comments != null && comments.stale);
+        boolean partial = (story == null) || (comments != null && comments.truncated);
+        return render(out -> writeStory(out, id, story, comments), stale, partial,
+                (story != null) ? story.title : null);
+    }
+    
+    /**
+     * Hydrates the next levels of a comment tree: fetches the replies of all
+     * the given comments at the same time, then the replies of those, and so
+     * on.
+     * <p>
+     * A level is only added if it fits in the node budget and is fetched
+     * in full before the deadline; comments whose replies would exceed the budget are
+     * left with reply IDs (keeping the earlier comments of the level), and a
+     * level that misses the deadline is dropped as a whole. Either way the
+     * tree is marked truncated. The replies fetched anyway stay in the
+     * comment cache.
+     * 
+     * @param tree the tree
+     * @param level the deepest hydrated level of the tree; may contain nulls
+     * @param levels number of levels still to hydrate
+     * @param deadline time after which no more replies are fetched
+     * @return future of the same tree
+     */
+    private CompletableFuture<CommentTree> getReplies(CommentTree tree, List<Comment> level, int levels,
+            long deadline) {
+        // the comments whose replies fit in the budget
+        List<Comment> parents = new ArrayList<>();
+        List<Callable<Comment>> tasks = new ArrayList<>();
+        AtomicBoolean skipped = new AtomicBoolean(false);  // whether any reply was left unfetched
+        int size = tree.size;
+        for (Comment parent : level) {
+            if (parent == null || parent.comments == null) continue;
+            if (size + parent.comments.length > commentTreeMaxNodes) {
+                tree.truncated = true;
+                break;
+            }
+            size += parent.comments.length;
+            parents.add(parent);
+            for (long id : parent.comments) {
+                tasks.add(() -> {
+                    if (System.currentTimeMillis() > deadline) {
+                        skipped.set(true);
+                        return null;
+                    }
+                    return getComment(id);
+                });
+            }
+        }
+        if (tasks.isEmpty())
+            return CompletableFuture.completedFuture(tree);
+        if (System.currentTimeMillis() > deadline) {
+            tree.truncated = true;
+            return CompletableFuture.completedFuture(tree);
+        }
+        
+        return fanOut.submitAll(tasks, commentConcurrency).thenCompose(replies -> {
+            if (skipped.get()) {
+                // don't pass the skipped replies off as deleted ones
+                tree.truncated = true;
+                return CompletableFuture.completedFuture(tree);
+            }
+            
+            List<Comment> next = new ArrayList<>(replies.size());
+            int i = 0;
+            for (Comment parent : parents) {
+                int n = parent.comments.length;
+                Comment[] sorted = sortComments(replies.subList(i, i + n).toArray(new Comment[n]));
+                tree.replies.put(parent.id, sorted);
+                for (Comment reply : sorted) {
+                    if (reply != null && reply.stale) tree.stale = true;
+                    next.add(reply);
+                }
+                i += n;
+            }
+            tree.size += replies.size();
+            
+            if (levels <= 1)
+                return CompletableFuture.completedFuture(tree);
+            return getReplies(tree, next, levels - 1, deadline);
+        });
+    }
+    
+    /**
+     * Writes the JSON string of {@link #viewStory(long, int)} field by field,
+     * without building a JSON tree or string first.
+     * 
+     * @param out where the JSON string is written to
+     * @param id Story ID
+     * @param story the story details, or null if not available
+     * @param comments the comment tree, or null if there's no comment
+     */
+    static void writeStory(Appendable out, long id, Story story, CommentTree comments) {
+        JSONWriter json = new JSONWriter(out).object();
         
-        Story story = getStory(id);
         if (story != null) {
-            jsObj.put("id", id);
-            jsObj.put("title", story.title);
-            jsObj.put("by", story.by);
-            jsObj.put("time", story.time);
+            json.key("id").value(Long.toString(id))
+                    .key("title").value(story.title)
+                    .key("by").value(story.by)
+                    .key("time").value(story.time);
             if (story.url != null)
-                jsObj.put("url", story.url);
+                json.key("url").value(story.url);
             
             // add comments
-            if (story.comments != null) {
-                JSONArray comms = new JSONArray();
-                // get an array of comment details for each comment id
-                Comment[] comments = getComments(story.comments);
-                for (Comment c : comments) {
-                    if (c == null) continue;  // comment is marked deleted by the HackerNews API
-                    JSONObject commObj = new JSONObject()
-                            .put("id", c.id)
-                            .put("text", c.text)
-                            .put("by", c.by)
-                            .put("time", c.time);
-                    if (c.comments != null) {
-                        // add subcomments
-                        commObj.put("comments", new JSONArray(c.comments));
-                    }
-                    comms.put(commObj);
-                }
-                jsObj.put("comments", comms);
+            if (comments != null) {
+                json.key("comments").array();
+                for (Comment c : comments.comments)
+                    writeComment(json, c, comments);
+                json.endArray();
+                if (comments.truncated)
+                    json.key("truncated").value(true);
             }
-            
-            logger.logStoryQueried(id, story.title);
+            if (story.stale || (comments != null && comments.stale))
+                json.key("stale").value(true);
         }
         
-        return jsObj.toString();
-        
+        json.endObject();
+    }
+    
+    // writes a comment, with its replies if they're in the tree
+    private static void writeComment(JSONWriter json, Comment c, CommentTree tree) {
+        if (c == null) return;  // comment is marked deleted by the HackerNews API
+        json.object()
+                .key("id").value(Long.toString(c.id))
+                .key("text").value(c.text)
+                .key("by").value(c.by)
+                .key("time").value(c.time);
+        if (c.comments != null) {
+            // add subcomments
+            json.key("comments").array();
+            Comment[] replies = tree.getReplies(c);
+            if (replies != null) {
+                for (Comment reply : replies)
+                    writeComment(json, reply, tree);
+            } else {
+                for (long sub : c.comments)
+                    json.value(Long.toString(sub));
+            }
+            json.endArray();
+        }
+        json.endObject();
     }
     
     /**
      * Returns the story details given the story ID.
+     * <p>
+     * If the story can't be fetched, the last cached copy is returned, marked
+     * stale.
      * 
      * @param id Story ID
-     * @return the Story object representing the story details
+     * @return the Story object representing the story details, or null if
+     *         the story doesn't exist or has been deleted
+     * @throws IOException if the story can't be fetched and isn't cached
      */
-    private Story getStory(String id) {
-        Story story = null;
+    private Story getStory(long id) throws IOException {
+        Story story = storyCache.get(id, NO_STORY);
+        if (story == NO_STORY) return null;  // known not to exist
+        if (story != null) return story;
+        
         try {
             long startTime = System.currentTimeMillis();
-            String response = fetch(itemBaseURL + id + ".json");
+            Item item = fetchItem(id);
             logger.logTimeUsed2GetStory(System.currentTimeMillis() - startTime);
-            JSONObject jsObj = new JSONObject(response);
-            
-            // extract comment IDs
-            String[] comments = null;
-            try {
-                JSONArray jsComms = jsObj.getJSONArray("kids");
-                comments = new String[jsComms.length()];
-                for (int i = 0; i < comments.length; i++) {
-                    comments[i] = Long.toString(jsComms.getLong(i));
-                }
-            } catch (JSONException e) {
-                // no comments posted
-            }
-            
-            String url = null;
-            try {
-                url = jsObj.getString("url");
-            } catch (JSONException e) {
-                // no url found
-            }
-            
-            story = new Story(
-                Long.toString(jsObj.getLong("id")),
-                jsObj.getString("by"),
-                jsObj.getString("title"),
-                jsObj.getLong("time"),
-                url,
-                comments
-            );
+            story = (item instanceof Story) ? (Story) item : null;
+            storyCache.put(id, story);  // null too, so it's not asked for again soon
             
         } catch (IOException ex) {
-            Logger.getLogger(HackerNewsAPIServlet.class.getName()).log(Level.SEVERE, null, ex);
-            logger.logHNApiDown();
+            logFetchFailure(ex);
+            story = storyCache.getStale(id);
+            if (story == null)
+                throw ex;
+            story = story.asStale();
         }
         
         return story;
     }
     
+    // a story of a list of stories; a failed one is left out (null), which
+    // marks the list partial rather than failing it
+    private Story getListedStory(long id) {
+        try {
+            return getStory(id);
+        } catch (IOException ex) {
+            return null;  // logged already
+        }
+    }
+    
     /**
      * Gets all the comment contents for a list of comment IDs.
+     * <p>
+     * Comments are fetched in parallel, with at most
+     * <code>commentConcurrency</code> of them in flight at the same time.
+     * Comments that fail to load are left out as <code>null</code>s, so the
+     * ones that did load are still returned.
      * 
      * @param ids an array of comment IDs
-     * @return an array of comment objects representing the details
+     * @return future of an array of comment objects representing the details, sorted in
+     *         reverse chronological order with <code>null</code>s (deleted or
+     *         failed comments) put last
      */
-    private Comment[] getComments(String[] ids) {
-        Comment[] comments = new Comment[ids.length];
-        for (int i = 0; i < comments.length; i++) {
-            try {
-                String raw = fetch(itemBaseURL + ids[i] + ".json");
-                JSONObject jsObj = new JSONObject(raw);
-                
-                // extract subcomment IDs
-                String[] subComms = null;
-                try {
-                    JSONArray jsComms = jsObj.getJSONArray("kids");
-                    subComms = new String[jsComms.length()];
-                    for (int j = 0; j < subComms.length; j++) {
-                        subComms[j] = Long.toString(jsComms.getLong(j));
-                    }
-                } catch (JSONException e) {
-                    // no subcomments posted
-                }
-                
-                try {
-                    comments[i] = new Comment(
-                        Long.toString(jsObj.getLong("id")),
-                        jsObj.getString("by"),
-                        Long.toString(jsObj.getLong("parent")),
-                        jsObj.getLong("time"),
-                        jsObj.getString("text"),
-                        subComms
-                    );
-                } catch (JSONException e) {
-                    // if some essential attributes such as "by" and "text"
-                    // is not found, it could be that the comment has been
-                    // deleted; here's one comment ID as an example: 15664070
-                }
-                
-            } catch (IOException ex) {
-                Logger.getLogger(HackerNewsAPIServlet.class.getName()).log(Level.SEVERE, null, ex);
-                logger.logHNApiDown();
-                return null;
-            }
+    private CompletableFuture<Comment[]> getComments(long[] ids) {
+        List<Callable<Comment>> tasks = new ArrayList<>(ids.length);
+        for (long id : ids) {
+            tasks.add(() -> getComment(id));
         }
-        // sort comments in reverse chronological order (latest comes first) and
-        // nulls put to last of the array
+        
+        return fanOut.submitAll(tasks, commentConcurrency)
+                .thenApply(list -> sortComments(list.toArray(new Comment[ids.length])));
+    }
+    
+    /**
+     * Sorts comments in reverse chronological order (latest comes first), with
+     * nulls put to last of the array.
+     * 
+     * @param comments the comments, sorted in place
+     * @return the same array
+     */
+    static Comment[] sortComments(Comment[] comments) {
         Arrays.sort(comments, Comparator.nullsLast(Comparator.reverseOrder()));
         return comments;
     }
     
-    
     /**
-     * Makes an HTTP request to a given URL and returns raw response data
-     * from the HTTP GET.
+     * Returns the comment details given the comment ID.
      * 
-     * @param urlString URL from which the data are fetched
-     * @return raw response data from the HTTP GET
-     * @throws IOException error fetching content from site; either the site is
-     *                     down, or something's going wrong with our server
+     * @param id Comment ID
+     * @return the Comment object representing the comment details (the last
+     *         cached copy, marked stale, if it can't be fetched), or null if
+     *         the comment has been deleted or failed to load
      */
-    private static String fetch(String urlString) throws IOException {
-        StringBuilder response = new StringBuilder();
-        URL url = new URL(urlString);
-        URLConnection conn = url.openConnection();
+    private Comment getComment(long id) {
+        Comment comment = commentCache.get(id, NO_COMMENT);
+        if (comment == NO_COMMENT) return null;  // known deleted
+        if (comment != null) return comment;
         
-        try (
-                BufferedReader br = new BufferedReader(
-                        new InputStreamReader(conn.getInputStream(), "UTF-8"))
-                ) {
-            String line;
-            while ((line = br.readLine()) != null) {
-                response.append(line);
-            }
+        try {
+            Item item = fetchItem(id);  // null if deleted
+            comment = (item instanceof Comment) ? (Comment) item : null;
+            commentCache.put(id, comment);  // null too, so it's not asked for again soon
+            
+        } catch (IOException ex) {
+            logFetchFailure(ex);
+            comment = commentCache.getStale(id);
+            if (comment != null)
+                comment = comment.asStale();
         }
         
-        return response.toString();
+        return comment;
     }
     
-    
-    // a helper class representing the data structure of a HackerNews story
-    private class Story {
-        public String id;  // the story's unique ID
-        public String by;  // username of the story's author
-        public String title;  // title of the story
-        public long time;  // creation date of the story, in Unix Time
-        public String url;  // URL of the story
-        public String[] comments;  // IDs of the story's comments, in ranked display order
-
-        
-        public Story(String id, String by, String title, long time, String url, String[] comments) {
-            this.id = id;
-            this.by = by;
-            this.title = title;
-            this.time = time;
-            this.url = url;
-            this.comments = comments;
-        }
-        
+    // calls rejected by the circuit breaker are expected while the
+    // HackerNews API is down, and it's been logged already
+    private static void logFetchFailure(IOException ex) {
+        Level level = (ex instanceof UpstreamClient.CircuitOpenException) ? Level.FINE : Level.SEVERE;
+        Logger.getLogger(HackerNewsAPIServlet.class.getName()).log(level, null, ex);
     }
     
-    // a helper class representing the data structure of a HackerNews comment
-    private class Comment implements Comparable<Comment> {
-        public String id;  // the comment's unique id
-        public String by;  // username of the comment's comment
-        public String parent;  // parent content to which this comment belongs
-        public long time;  // creation date of the comment, in Unix Time
-        public String text;  // main comment content
-        public String[] comments;  // IDs of the subcomments, in ranked display order
-
-        public Comment(String id, String by, String parent, long time, String text, String[] comments) {
-            this.id = id;
-            this.by = by;
-            this.parent = parent;
-            this.time = time;
-            this.text = text;
-            this.comments = comments;
-        }
-
-        @Override
-        public int compareTo(Comment o) {
-            return (int)(this.time - o.time);
+    
+    /**
+     * Fetches an item from the HackerNews API.
+     * <p>
+     * The item is decoded as the response body comes in, see
+     * {@link ItemDecoder}. Concurrent fetches of the same item are coalesced
+     * into a single upstream request.
+     * 
+     * @param id item ID
+     * @return the {@link Story} or {@link Comment}, or null if the item
+     *         doesn't exist or has been deleted
+     * @throws IOException error fetching content from the HackerNews API
+     */
+    private Item fetchItem(long id) throws IOException {
+        try {
+            return itemFetches.execute(id, () -> upstream.get(itemBaseURL + id + ".json", ItemDecoder::decode));
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof IOException)
+                throw (IOException) ex.getCause();
+            throw new IOException(ex.getCause());
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while fetching item " + id);
         }
-        
     }
     
     // ---- Controller ------------------------------------------------------------
@@ -355,21 +907,60 @@ public class HackerNewsAPIServlet extends HttpServlet {
 //        }
         
         // redirect request to respective methods
-        String resp = null;
+        CompletableFuture<RenderedResponse> resp;
+        String key;  // key in the response cache, or null if not cached there
+        RenderedResponse cached;
         switch (query[0]) {
             case "top-stories":
                 System.out.println("Received top stories query.");
-                resp = getTopStories(20);
+                int offset = getIntQueryParameter(request, "offset", 0);
+                int limit = getIntQueryParameter(request, "limit", topStoriesPageSize);
+                if (offset < 0 || limit < 1 || limit > topStoriesMaxPageSize) {
+                    // Bad request: malformed page
+                    writeResponse(request, response, null, null);
+                    return;
+                }
+                if (offset == 0 && limit == topStoriesPageSize) {
+                    // built along with the list; never older than the list itself
+                    key = null;
+                    cached = null;
+                    resp = getTopStories(offset, limit);
+                    break;
+                }
+                key = cacheKey("top-stories", offset, limit);
+                cached = responseCache.get(key);
+                resp = (cached == null) ? getTopStories(offset, limit) : null;
                 break;
                 
             case "story":
+                if (query.length < 2) {
+                    // Bad request: no id supplied
+                    writeResponse(request, response, null, null);
+                    return;
+                }
+                int depth = getIntQueryParameter(request, "depth", 1);
+                if (depth < 1 || depth > maxCommentDepth) {
+                    // Bad request: malformed depth
+                    writeResponse(request, response, null, null);
+                    return;
+                }
+                long id;
                 try {
-                    System.out.println("Received story query for " + query[1]);
-                    resp = viewStory(query[1]);
-                } catch (Exception e) {
-                    e.printStackTrace();
-                    response.setStatus(400);  // Bad request: no / wrong id supplied
+                    id = Long.parseLong(query[1]);
+                } catch (NumberFormatException e) {
+                    id = -1;
                 }
+                if (id < 0) {
+                    // Bad request: malformed id
+                    writeResponse(request, response, null, null);
+                    return;
+                }
+                System.out.println("Received story query for " + id);
+                key = cacheKey("story/" + id, depth);
+                cached = responseCache.get(key);
+                if (cached != null && cached.title != null)
+                    logger.logStoryQueried(Long.toString(id), cached.title);  // as viewStory() would
+                resp = (cached == null) ? viewStory(id, depth) : null;
                 break;
                 
             default:
@@ -378,21 +969,198 @@ public class HackerNewsAPIServlet extends HttpServlet {
                 return;
         }
         
+        if (cached != null) {
+            // no upstream requests, no JSON building
+            writeResponse(request, response, cached, null);
+            return;
+        }
+        if (key != null) {
+            resp = resp.thenApply(rendered -> {
+                if (rendered.isCacheable())
+                    responseCache.put(key, rendered);
+                return rendered;
+            });
+        }
+        
+        if (asyncRequests && request.isAsyncSupported()) {
+            // release the container thread; the response is written once the
+            // upstream requests are done
+            AsyncContext async = request.startAsync();
+            async.setTimeout(asyncTimeout);
+            AtomicBoolean finished = new AtomicBoolean(false);
+            async.addListener(new AsyncListener() {
+                @Override
+                public void onTimeout(AsyncEvent event) throws IOException {
+                    if (finished.compareAndSet(false, true)) {
+                        ((HttpServletResponse) event.getAsyncContext().getResponse()).setStatus(504);
+                        event.getAsyncContext().complete();
+                    }
+                }
+                
+                @Override
+                public void onComplete(AsyncEvent event) {}
+                
+                @Override
+                public void onError(AsyncEvent event) {}
+                
+                @Override
+                public void onStartAsync(AsyncEvent event) {}
+            });
+            
+            resp.whenComplete((body, ex) -> {
+                if (!finished.compareAndSet(false, true))
+                    return;  // timed out already
+                try {
+                    writeResponse(request, (HttpServletResponse) async.getResponse(), body, ex);
+                } catch (IOException e) {
+                    Logger.getLogger(HackerNewsAPIServlet.class.getName()).log(Level.WARNING, null, e);
+                } finally {
+                    async.complete();
+                }
+            });
+            
+        } else {
+            RenderedResponse body = null;
+            Throwable failure = null;
+            try {
+                body = resp.get();
+            } catch (ExecutionException ex) {
+                failure = ex.getCause();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                failure = ex;
+            }
+            writeResponse(request, response, body, failure);
+        }
+    }
+    
+    /**
+     * Writes the response back to the client.
+     * <p>
+     * The response goes out with its <code>ETag</code>; if the client already
+     * has it (<code>If-None-Match</code>), only the headers are sent, with
+     * <code>304</code>. Stale and partial responses must be revalidated every
+     * time, the others may be reused for <code>responseCacheTtl</code>
+     * seconds.
+     * <p>
+     * The body is sent compressed if the client accepts it (see
+     * {@link RenderedResponse#negotiate(String)}); the compressed bytes are
+     * kept with the response, so a cached response is only compressed once.
+     * Either way the bytes are written to the client as they are, without
+     * any further encoding or copying.
+     * 
+     * @param request servlet request
+     * @param response servlet response
+     * @param resp the response, or null if the request is malformed or failed
+     * @param failure error raised while handling the request, if any
+     * @throws IOException if an I/O error occurs
+     */
+    private void writeResponse(HttpServletRequest request, HttpServletResponse response,
+            RenderedResponse resp, Throwable failure) throws IOException {
+        if (failure instanceof CompletionException && failure.getCause() != null)
+            failure = failure.getCause();
+        if (failure != null) {
+            if (failure instanceof IOException) {
+                // the HackerNews API is unreachable, and there's no cached
+                // copy; whether or not the circuit breaker has opened yet
+                Logger.getLogger(HackerNewsAPIServlet.class.getName()).log(Level.FINE, null, failure);
+                long retryAfter = (failure instanceof UpstreamClient.CircuitOpenException)
+                        ? ((UpstreamClient.CircuitOpenException) failure).getRetryAfter()
+                        : breaker.getRetryAfter();
+                // at least a second, as a failure with the breaker closed
+                // may well be a passing one
+                response.setHeader("Retry-After", Long.toString(Math.max(1, (retryAfter + 999) / 1000)));
+                response.setStatus(503);
+            } else {
+                Logger.getLogger(HackerNewsAPIServlet.class.getName()).log(Level.WARNING, null, failure);
+                response.setStatus(500);
+            }
+            return;
+        }
+        
         if (resp != null) {
+            RenderedResponse.Encoding encoding = resp.negotiate(request.getHeader("Accept-Encoding"));
+            response.setHeader("Vary", "Accept-Encoding");
+            response.setHeader("ETag", resp.etag(encoding));
+            response.setHeader("Cache-Control",
+                    resp.isCacheable() ? "public, max-age=" + responseCacheTtl : "no-cache");
+            if (resp.stale)
+                response.setHeader("Warning", "110 - \"Response is Stale\"");
+            if (resp.matches(request.getHeader("If-None-Match"), encoding)) {
+                response.setStatus(304);  // not modified
+                return;
+            }
             response.setStatus(200);
             // write the response back to the client
-            try (
-                PrintWriter out = response.getWriter()
-                ) {
-                out.println(resp);
-            }
+            byte[] body = resp.body(encoding);
+            if (encoding != RenderedResponse.Encoding.IDENTITY)
+                response.setHeader("Content-Encoding", encoding.token);
+            response.setContentLength(body.length);
+            response.getOutputStream().write(body);
         } else {
-            // malformed request
+            // malformed request, e.g. no / wrong id supplied
             logger.logWrongGetReqest("Malformed request.");
             response.setStatus(400);
         }
     }
+    
+    // a response body that writes itself out
+    private interface ResponseBody {
+        void writeTo(Appendable out) throws IOException;
+    }
+    
+    /**
+     * Encodes a response body to bytes, so that its entity tag can be
+     * computed before it's sent.
+     * 
+     * @param body the response body
+     * @param stale whether it's built from outdated data
+     * @param partial whether something was left out of it
+     * @return the rendered response
+     */
+    private static RenderedResponse render(ResponseBody body, boolean stale, boolean partial) {
+        return render(body, stale, partial, null);
+    }
+    
+    // renders the response of a story; its title is kept for the usage log
+    private static RenderedResponse render(ResponseBody body, boolean stale, boolean partial,
+            String title) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(4096);
+        try (Writer out = new OutputStreamWriter(bytes, StandardCharsets.UTF_8)) {
+            body.writeTo(out);
+            out.write('\n');
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);  // can't happen writing to memory
+        }
+        return new RenderedResponse(bytes.toByteArray(), stale, partial, title);
+    }
+    
+    // key of a request in the response cache
+    private static String cacheKey(String path, int... params) {
+        StringBuilder key = new StringBuilder(path);
+        for (int param : params)
+            key.append('/').append(param);
+        return key.toString();
+    }
 
+    /**
+     * Reads a non-negative integer query parameter.
+     * 
+     * @param request servlet request
+     * @param name name of the parameter
+     * @param defaultValue value to be used if the parameter is absent
+     * @return value of the parameter, or -1 if it's malformed
+     */
+    private static int getIntQueryParameter(HttpServletRequest request, String name, int defaultValue) {
+        String value = request.getParameter(name);
+        if (value == null || value.isEmpty()) return defaultValue;
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+    
     /**
      * Handles the HTTP <code>POST</code> method.
      *
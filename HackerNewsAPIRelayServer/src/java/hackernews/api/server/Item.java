@@ -0,0 +1,49 @@
+package hackernews.api.server;
+
+/**
+ * The fields shared by HackerNews stories and comments.
+ * <p>
+ * Items are held by the thousands in the item caches, so they're laid out
+ * compactly: IDs are primitive longs and the IDs of the kids one
+ * <code>long[]</code>, rather than a String each, and author names are
+ * interned, as the same few users write most of the items. IDs are only
+ * turned into strings when a response is written.
+ *
+ * @author Stephen Xie &lt;[redacted]@andrew.cmu.edu&gt;
+ */
+abstract class Item {
+    public final long id;  // the item's unique ID
+    public final String by;  // username of the item's author, interned
+    public final long time;  // creation date of the item, in Unix Time
+    public final long[] comments;  // IDs of the item's comments, in ranked display order; null if none
+    public boolean stale = false;  // whether this is an expired copy served while upstream is down
+
+
+    Item(long id, String by, long time, long[] comments) {
+        this.id = id;
+        this.by = (by != null) ? by.intern() : null;
+        this.time = time;
+        this.comments = comments;
+    }
+
+    /**
+     * @return a copy of this item marked stale; cached items are shared, so
+     *         they're never marked themselves
+     */
+    abstract Item asStale();
+
+    // rough estimate of the memory used by this object, in bytes; the author
+    // name is shared with other items, so it's not counted
+    public int weight() {
+        int w = 48;
+        if (comments != null)
+            w += 16 + 8 * comments.length;
+        return w;
+    }
+
+    // rough estimate of the memory used by a possibly null string, in bytes
+    static int weight(String s) {
+        return (s == null) ? 0 : 40 + 2 * s.length();
+    }
+
+}
@@ -0,0 +1,343 @@
+package hackernews.api.server;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.ToIntFunction;
+
+/**
+ * A bounded, size-aware in-process cache of Hacker News items.
+ * <p>
+ * Whenever the total weight of the cached items goes over
+ * <code>maxWeight</code>, entries are evicted in approximately
+ * least-recently-used order until it fits again: each eviction samples a few
+ * entries and drops the one used longest ago, the way Redis does. Lookups
+ * never take a lock; they read a {@link ConcurrentHashMap} and stamp the
+ * entry's access time, so concurrent requests don't queue up on the cache.
+ * Only evictions are serialized, and they only happen on puts, i.e. after an
+ * upstream fetch. Every entry also expires <code>ttl</code> milliseconds
+ * after it's put into the cache, so {@link #get(Object)} never serves data
+ * older than that.
+ * <p>
+ * Expired entries are kept until they're replaced or evicted though, as the
+ * last known good copy of their item: {@link #getStale(Object)} still serves
+ * them, for when the item can't be fetched again.
+ * <p>
+ * Items known to have changed can be expired early with
+ * {@link #expire(Object)}, so the time-to-live only needs to bound the
+ * staleness of changes nobody reported.
+ * <p>
+ * Items known not to exist (deleted or missing ones) can be cached too, by
+ * putting null, for <code>negativeTtl</code> milliseconds; see
+ * {@link #get(Object, Object)}.
+ * <p>
+ * Hit, miss, stale hit, eviction and expiration counts are kept for the
+ * dashboard.
+ *
+ * @param <K> type of the item IDs
+ * @param <V> type of the cached items
+ * @author Stephen Xie &lt;[redacted]@andrew.cmu.edu&gt;
+ */
+public class ItemCache<K, V> {
+
+    private static final int EVICTION_SAMPLES = 8;  // entries compared per eviction
+    private static final int ABSENT_WEIGHT = 64;  // weight of an entry caching an absence
+
+    private final String name;
+    private final long maxWeight;  // maximum total weight of all entries
+    private final long ttl;  // time-to-live of each entry, in milliseconds
+    private final long negativeTtl;  // time-to-live of absences, in milliseconds; 0 if not cached
+    private final ToIntFunction<? super V> weigher;  // estimates weight of an item
+
+    private final ConcurrentHashMap<K, Entry<V>> entries = new ConcurrentHashMap<>();
+    private final AtomicLong weight = new AtomicLong();  // current total weight
+
+    // sweeps over the entries, handing out the samples of the evictions, so
+    // that over time every entry gets compared; guarded by itself
+    private final Object evictionLock = new Object();
+    private Iterator<Map.Entry<K, Entry<V>>> hand;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong staleHits = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong expirations = new AtomicLong();  // by expire()
+
+
+    /**
+     * @param name name of the cache, shown on the dashboard
+     * @param maxWeight maximum total weight of all cached items
+     * @param ttl time-to-live of each entry, in milliseconds
+     * @param weigher function estimating the weight (roughly in bytes) of an item
+     */
+    public ItemCache(String name, long maxWeight, long ttl, ToIntFunction<? super V> weigher) {
+        this(name, maxWeight, ttl, 0, weigher);
+    }
+
+    /**
+     * @param name name of the cache, shown on the dashboard
+     * @param maxWeight maximum total weight of all cached items
+     * @param ttl time-to-live of each entry, in milliseconds
+     * @param negativeTtl time-to-live of the absence of an item, in
+     *                    milliseconds; 0 not to cache absences
+     * @param weigher function estimating the weight (roughly in bytes) of an item
+     */
+    public ItemCache(String name, long maxWeight, long ttl, long negativeTtl, ToIntFunction<? super V> weigher) {
+        this.name = name;
+        this.maxWeight = maxWeight;
+        this.ttl = ttl;
+        this.negativeTtl = negativeTtl;
+        this.weigher = weigher;
+    }
+
+    /**
+     * Returns the cached item with the given ID.
+     *
+     * @param id item ID
+     * @return the cached item, or null if it's not cached, has expired, or
+     *         is cached as not existing
+     */
+    public V get(K id) {
+        return get(id, null);
+    }
+
+    /**
+     * Returns the cached item with the given ID, telling apart the items
+     * cached as not existing from the ones not cached at all.
+     *
+     * @param id item ID
+     * @param absent returned if the item is cached as not existing
+     * @return the cached item, <code>absent</code> if it's cached as not
+     *         existing, or null if it's not cached or has expired
+     */
+    public V get(K id, V absent) {
+        Entry<V> entry = entries.get(id);
+        if (entry != null && entry.expiresAt > System.currentTimeMillis()) {
+            entry.touch();
+            hits.incrementAndGet();
+            return (entry.value != null) ? entry.value : absent;
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Returns the cached item with the given ID, even if it has expired.
+     *
+     * @param id item ID
+     * @return the last cached copy of the item, or null if it's not cached or
+     *         is cached as not existing
+     */
+    public V getStale(K id) {
+        Entry<V> entry = entries.get(id);
+        if (entry == null || entry.value == null) return null;
+        entry.touch();
+        if (entry.expiresAt <= System.currentTimeMillis())
+            staleHits.incrementAndGet();
+        return entry.value;
+    }
+
+    /**
+     * Tells whether a live item with the given ID is cached, without counting
+     * it in the statistics.
+     *
+     * @param id item ID
+     * @return whether {@link #get(Object)} would return the item, or the item
+     *         is cached as not existing
+     */
+    public boolean isCached(K id) {
+        Entry<V> entry = entries.get(id);
+        return entry != null && entry.expiresAt > System.currentTimeMillis();
+    }
+
+    /**
+     * Returns the cached item with the given ID, even if it has expired,
+     * without counting it in the statistics.
+     *
+     * @param id item ID
+     * @return the last cached copy of the item, or null if it's not cached or
+     *         is cached as not existing
+     */
+    public V peek(K id) {
+        Entry<V> entry = entries.get(id);
+        return (entry != null) ? entry.value : null;
+    }
+
+    /**
+     * Caches an item, replacing the old one with the same ID if any.
+     *
+     * @param id item ID
+     * @param value the item to be cached, or null to cache that the item
+     *              doesn't exist; ignored if absences aren't cached
+     */
+    public void put(K id, V value) {
+        Entry<V> entry;
+        if (value != null) {
+            entry = new Entry<>(value, weigher.applyAsInt(value), System.currentTimeMillis() + ttl);
+        } else if (negativeTtl > 0) {
+            entry = new Entry<>(null, ABSENT_WEIGHT, System.currentTimeMillis() + negativeTtl);
+        } else {
+            return;
+        }
+        if (entry.weight > maxWeight) return;  // would evict everything else
+
+        Entry<V> old = entries.put(id, entry);
+        long total = weight.addAndGet(entry.weight - ((old != null) ? old.weight : 0));
+        if (total > maxWeight)
+            evict(id);
+    }
+
+    // evicts approximately least recently used entries, but not the one with
+    // the given ID, until everything fits
+    private void evict(K keep) {
+        synchronized (evictionLock) {
+            while (weight.get() > maxWeight) {
+                Map.Entry<K, Entry<V>> victim = null;
+                for (int i = 0; i < EVICTION_SAMPLES; i++) {
+                    if (hand == null || !hand.hasNext()) {
+                        hand = entries.entrySet().iterator();
+                        if (!hand.hasNext()) return;
+                    }
+                    Map.Entry<K, Entry<V>> sample = hand.next();
+                    if (sample.getKey().equals(keep)) continue;
+                    if (victim == null || sample.getValue().lastAccess < victim.getValue().lastAccess)
+                        victim = sample;
+                }
+                if (victim == null) return;  // nothing else left
+                // unless it's been replaced meanwhile, and so just used
+                if (entries.remove(victim.getKey(), victim.getValue())) {
+                    weight.addAndGet(-victim.getValue().weight);
+                    evictions.incrementAndGet();
+                }
+            }
+        }
+    }
+
+    /**
+     * Expires an item right away, e.g. because it's known to have changed:
+     * {@link #get(Object)} no longer returns it, but it's kept as the last
+     * known good copy for {@link #getStale(Object)}.
+     *
+     * @param id item ID
+     * @return the item, or null if it's not cached or is cached as not
+     *         existing
+     */
+    public V expire(K id) {
+        while (true) {
+            Entry<V> entry = entries.get(id);
+            if (entry == null) return null;
+            if (entry.expiresAt <= 0) return entry.value;
+            Entry<V> expired = new Entry<>(entry.value, entry.weight, 0);
+            expired.lastAccess = entry.lastAccess;
+            // same weight, so the total doesn't change
+            if (entries.replace(id, entry, expired)) {
+                expirations.incrementAndGet();
+                return entry.value;
+            }
+        }
+    }
+
+    /**
+     * Removes an item from the cache.
+     *
+     * @param id item ID
+     */
+    public void invalidate(K id) {
+        Entry<V> old = entries.remove(id);
+        if (old != null)
+            weight.addAndGet(-old.weight);
+    }
+
+    // --- statistics ---------------------------------------------------
+
+    /**
+     * @return name of the cache
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return number of lookups that found a live item, or that the item
+     *         doesn't exist
+     */
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    /**
+     * @return number of lookups that found nothing or an expired item
+     */
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    /**
+     * @return number of expired items served by {@link #getStale(Object)}
+     */
+    public long getStaleHitCount() {
+        return staleHits.get();
+    }
+
+    /**
+     * @return number of items evicted to make room for others
+     */
+    public long getEvictionCount() {
+        return evictions.get();
+    }
+
+    /**
+     * @return number of items expired by {@link #expire(Object)} before
+     *         their time-to-live was up
+     */
+    public long getExpirationCount() {
+        return expirations.get();
+    }
+
+    /**
+     * @return ratio of lookups that were hits, or 0 if there's no lookup yet
+     */
+    public double getHitRate() {
+        long h = hits.get();
+        long total = h + misses.get();
+        return (total == 0) ? 0 : h / (double) total;
+    }
+
+    /**
+     * @return number of items currently cached, including expired ones and
+     *         absences
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * @return current total weight of all cached items
+     */
+    public long getWeight() {
+        return weight.get();
+    }
+
+
+    // a cached item with its bookkeeping data
+    private static class Entry<V> {
+        final V value;  // null if the item doesn't exist
+        final int weight;
+        final long expiresAt;  // in milliseconds since epoch
+        // when last used, in System.nanoTime(); only compared between
+        // entries by the evictions, so racy updates are fine
+        long lastAccess = System.nanoTime();
+
+        Entry(V value, int weight, long expiresAt) {
+            this.value = value;
+            this.weight = weight;
+            this.expiresAt = expiresAt;
+        }
+
+        void touch() {
+            lastAccess = System.nanoTime();
+        }
+    }
+
+}
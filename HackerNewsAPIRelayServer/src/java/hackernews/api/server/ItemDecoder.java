@@ -0,0 +1,76 @@
+package hackernews.api.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Decodes items of the HackerNews API straight from the response bytes into
+ * {@link Story} and {@link Comment} objects.
+ * <p>
+ * Only the fields the relay uses are decoded, with a {@link JsonReader};
+ * the others (score, descendants, ...) are skipped over.
+ *
+ * @author Stephen Xie &lt;[redacted]@andrew.cmu.edu&gt;
+ */
+final class ItemDecoder {
+
+    // the fields read; any other is skipped
+    private static final String[] FIELDS = {
+        "id", "type", "by", "time", "title", "url", "text", "parent", "kids", "deleted"
+    };
+
+    private ItemDecoder() {}
+
+    /**
+     * Decodes an item.
+     *
+     * @param body raw JSON data of the item, in UTF-8
+     * @return a {@link Story} for stories (and jobs and polls), a
+     *         {@link Comment} for comments, or null if the item doesn't exist,
+     *         has been deleted or misses an essential field
+     * @throws IOException if the data can't be read or is malformed
+     */
+    static Item decode(InputStream body) throws IOException {
+        JsonReader in = new JsonReader(body);
+        if (!in.beginObject())
+            return null;  // the API returns null for unknown items
+
+        long id = 0, time = 0, parent = -1;
+        String type = null, by = null, title = null, url = null, text = null;
+        long[] kids = null;
+        boolean deleted = false;
+        while (in.hasNext()) {
+            String name = in.nextName(FIELDS);
+            if (name == null) {
+                in.skipValue();
+                continue;
+            }
+            switch (name) {
+                case "id": id = in.nextLong(); break;
+                case "type": type = in.nextString(); break;
+                case "by": by = in.nextString(); break;
+                case "time": time = in.nextLong(); break;
+                case "title": title = in.nextString(); break;
+                case "url": url = in.nextString(); break;
+                case "text": text = in.nextString(); break;
+                case "parent": parent = in.nextLong(); break;
+                case "kids": kids = in.nextLongArray(); break;
+                case "deleted": deleted = in.nextBoolean(); break;
+                default: in.skipValue(); break;
+            }
+        }
+        in.endObject();
+
+        if ("comment".equals(type) || (type == null && parent >= 0)) {
+            // a deleted comment has neither author nor text; here's one
+            // comment ID as an example: 15664070
+            if (deleted || by == null || text == null || parent < 0)
+                return null;
+            return new Comment(id, by, parent, time, text, kids);
+        }
+        if (deleted || by == null || title == null)
+            return null;
+        return new Story(id, by, title, time, url, kids);
+    }
+
+}
@@ -0,0 +1,395 @@
+package hackernews.api.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * A pull parser reading JSON straight from a UTF-8 byte stream.
+ * <p>
+ * The caller walks through the values in document order and picks what it
+ * needs: field names are matched against a list of known names rather than
+ * turned into strings, numbers are parsed from the bytes, and values that
+ * aren't needed are skipped without being decoded. Only the strings actually
+ * read are allocated; no token objects, tree or intermediate string of the
+ * whole document are built.
+ * <p>
+ * The parser is lenient about commas and doesn't validate what it skips; it's
+ * meant for trusted input in a known shape. It's not thread-safe.
+ *
+ * @author Stephen Xie &lt;[redacted]@andrew.cmu.edu&gt;
+ */
+final class JsonReader {
+
+    private final InputStream in;
+    private final byte[] buffer = new byte[8192];
+    private int pos = 0;  // next byte to read in the buffer
+    private int limit = 0;  // end of the valid bytes in the buffer
+    private long offset = 0;  // position of the buffer in the stream, for error messages
+
+    private char[] chars = new char[256];  // the string being decoded
+
+
+    /**
+     * @param in the stream to read from; not closed by the parser
+     */
+    JsonReader(InputStream in) {
+        this.in = in;
+    }
+
+    /**
+     * Consumes the start of an object.
+     *
+     * @return true, or false if the value is <code>null</code> instead
+     * @throws IOException if the stream can't be read, or there's no object
+     */
+    boolean beginObject() throws IOException {
+        if (peek() == 'n') {
+            literal("null");
+            return false;
+        }
+        expect('{');
+        return true;
+    }
+
+    /**
+     * Consumes the end of an object.
+     *
+     * @throws IOException if the stream can't be read, or the object isn't over
+     */
+    void endObject() throws IOException {
+        expect('}');
+    }
+
+    /**
+     * Consumes the start of an array.
+     *
+     * @return true, or false if the value is <code>null</code> instead
+     * @throws IOException if the stream can't be read, or there's no array
+     */
+    boolean beginArray() throws IOException {
+        if (peek() == 'n') {
+            literal("null");
+            return false;
+        }
+        expect('[');
+        return true;
+    }
+
+    /**
+     * Consumes the end of an array.
+     *
+     * @throws IOException if the stream can't be read, or the array isn't over
+     */
+    void endArray() throws IOException {
+        expect(']');
+    }
+
+    /**
+     * @return whether the current object or array has another element
+     * @throws IOException if the stream can't be read
+     */
+    boolean hasNext() throws IOException {
+        int b = peek();
+        if (b == ',') {
+            pos++;
+            b = peek();
+        }
+        if (b == -1)
+            throw syntaxError("Unexpected end of input");
+        return b != '}' && b != ']';
+    }
+
+    /**
+     * Reads the name of the next field of an object.
+     *
+     * @param known the field names the caller is interested in
+     * @return the element of <code>known</code> equal to the name (the same
+     *         instance), or null if it's none of them
+     * @throws IOException if the stream can't be read, or there's no name
+     */
+    String nextName(String[] known) throws IOException {
+        expect('"');
+        int length = readString();
+        expect(':');
+        for (String name : known) {
+            if (name.length() != length) continue;
+            int i = 0;
+            while (i < length && name.charAt(i) == chars[i])
+                i++;
+            if (i == length) return name;
+        }
+        return null;
+    }
+
+    /**
+     * @return the next value, a string, or null if it's <code>null</code>
+     * @throws IOException if the stream can't be read, or there's no string
+     */
+    String nextString() throws IOException {
+        if (peek() == 'n') {
+            literal("null");
+            return null;
+        }
+        expect('"');
+        int length = readString();  // may replace chars with a larger array
+        return new String(chars, 0, length);
+    }
+
+    /**
+     * @return the next value, an integer number
+     * @throws IOException if the stream can't be read, or there's no integer
+     */
+    long nextLong() throws IOException {
+        peek();
+        boolean negative = false;
+        if (pos < limit && buffer[pos] == '-') {
+            negative = true;
+            pos++;
+        }
+        long value = 0;
+        int digits = 0;
+        while (true) {
+            if (pos == limit && !fill()) break;
+            int d = buffer[pos] - '0';
+            if (d < 0 || d > 9) break;
+            value = value * 10 + d;
+            digits++;
+            pos++;
+        }
+        if (digits == 0 || digits > 18)
+            throw syntaxError("Expected an integer");
+        return negative ? -value : value;
+    }
+
+    /**
+     * @return the next value, an array of integer numbers, or null if it's
+     *         <code>null</code>
+     * @throws IOException if the stream can't be read, or there's no such array
+     */
+    long[] nextLongArray() throws IOException {
+        if (!beginArray()) return null;
+        long[] values = new long[16];
+        int n = 0;
+        while (hasNext()) {
+            if (n == values.length)
+                values = Arrays.copyOf(values, n * 2);
+            values[n++] = nextLong();
+        }
+        endArray();
+        return Arrays.copyOf(values, n);
+    }
+
+    /**
+     * @return the next value, a boolean
+     * @throws IOException if the stream can't be read, or there's no boolean
+     */
+    boolean nextBoolean() throws IOException {
+        if (peek() == 't') {
+            literal("true");
+            return true;
+        }
+        literal("false");
+        return false;
+    }
+
+    /**
+     * Skips the next value, whatever it is, without decoding it.
+     *
+     * @throws IOException if the stream can't be read, or there's no value
+     */
+    void skipValue() throws IOException {
+        int b = peek();
+        switch (b) {
+            case '{':
+                pos++;
+                while (hasNext()) {
+                    expect('"');
+                    skipString();
+                    expect(':');
+                    skipValue();
+                }
+                endObject();
+                break;
+            case '[':
+                pos++;
+                while (hasNext())
+                    skipValue();
+                endArray();
+                break;
+            case '"':
+                pos++;
+                skipString();
+                break;
+            case -1:
+                throw syntaxError("Unexpected end of input");
+            default:
+                // a number or a literal: everything up to the next delimiter
+                int length = 0;
+                while (pos < limit || fill()) {
+                    b = buffer[pos];
+                    if (b == ',' || b == '}' || b == ']' || b == ' ' || b == '\n' || b == '\r' || b == '\t')
+                        break;
+                    pos++;
+                    length++;
+                }
+                if (length == 0)
+                    throw syntaxError("Expected a value");
+        }
+    }
+
+    // --- bytes --------------------------------------------------------
+
+    // the next byte that isn't whitespace, without consuming it; -1 at the end
+    private int peek() throws IOException {
+        while (pos < limit || fill()) {
+            byte b = buffer[pos];
+            if (b != ' ' && b != '\n' && b != '\r' && b != '\t')
+                return b & 0xff;
+            pos++;
+        }
+        return -1;
+    }
+
+    // refills the buffer; false at the end of the stream
+    private boolean fill() throws IOException {
+        offset += limit;
+        pos = 0;
+        limit = 0;
+        int n;
+        while ((n = in.read(buffer)) == 0) {
+            // nothing yet
+        }
+        if (n < 0) return false;
+        limit = n;
+        return true;
+    }
+
+    // the next byte, whitespace included
+    private int next() throws IOException {
+        if (pos == limit && !fill())
+            throw syntaxError("Unexpected end of input");
+        return buffer[pos++] & 0xff;
+    }
+
+    private void expect(char c) throws IOException {
+        if (peek() != c)
+            throw syntaxError("Expected '" + c + "'");
+        pos++;
+    }
+
+    private void literal(String word) throws IOException {
+        peek();
+        for (int i = 0; i < word.length(); i++) {
+            if (next() != word.charAt(i))
+                throw syntaxError("Expected " + word);
+        }
+    }
+
+    // decodes the rest of a string, after the opening quote, into chars;
+    // returns its length
+    private int readString() throws IOException {
+        int n = 0;
+        while (true) {
+            // make room for a surrogate pair
+            if (n + 2 > chars.length)
+                chars = Arrays.copyOf(chars, chars.length * 2);
+
+            // fast path: ASCII characters already in the buffer
+            while (pos < limit && n < chars.length) {
+                byte b = buffer[pos];
+                if (b == '"' || b == '\\' || b < 0) break;
+                chars[n++] = (char) b;
+                pos++;
+            }
+            if (n + 2 > chars.length) continue;
+
+            int b = next();
+            if (b == '"') {
+                return n;
+            } else if (b == '\\') {
+                n = readEscape(n);
+            } else if (b >= 0x80) {
+                n = readMultiByte(b, n);
+            } else {
+                chars[n++] = (char) b;
+            }
+        }
+    }
+
+    private int readEscape(int n) throws IOException {
+        int c = next();
+        switch (c) {
+            case '"': case '\\': case '/': chars[n++] = (char) c; break;
+            case 'b': chars[n++] = '\b'; break;
+            case 'f': chars[n++] = '\f'; break;
+            case 'n': chars[n++] = '\n'; break;
+            case 'r': chars[n++] = '\r'; break;
+            case 't': chars[n++] = '\t'; break;
+            case 'u':
+                int code = 0;
+                for (int i = 0; i < 4; i++) {
+                    int digit = Character.digit(next(), 16);
+                    if (digit < 0)
+                        throw syntaxError("Malformed \\u escape");
+                    code = (code << 4) | digit;
+                }
+                chars[n++] = (char) code;  // surrogates come as two escapes
+                break;
+            default:
+                throw syntaxError("Malformed escape");
+        }
+        return n;
+    }
+
+    // decodes a UTF-8 sequence starting with the given byte; malformed
+    // sequences become U+FFFD, like new String(bytes, UTF_8) does
+    private int readMultiByte(int lead, int n) throws IOException {
+        int extra;
+        int code;
+        if ((lead & 0xe0) == 0xc0) {
+            extra = 1;
+            code = lead & 0x1f;
+        } else if ((lead & 0xf0) == 0xe0) {
+            extra = 2;
+            code = lead & 0x0f;
+        } else if ((lead & 0xf8) == 0xf0) {
+            extra = 3;
+            code = lead & 0x07;
+        } else {
+            chars[n++] = '\uFFFD';
+            return n;
+        }
+        for (int i = 0; i < extra; i++) {
+            if ((pos < limit || fill()) && (buffer[pos] & 0xc0) == 0x80) {
+                code = (code << 6) | (buffer[pos++] & 0x3f);
+            } else {
+                chars[n++] = '\uFFFD';  // truncated sequence; leave the next byte be
+                return n;
+            }
+        }
+        if (code >= Character.MIN_SUPPLEMENTARY_CODE_POINT && code <= Character.MAX_CODE_POINT) {
+            chars[n++] = Character.highSurrogate(code);
+            chars[n++] = Character.lowSurrogate(code);
+        } else if (code < Character.MIN_SUPPLEMENTARY_CODE_POINT && !Character.isSurrogate((char) code)) {
+            chars[n++] = (char) code;
+        } else {
+            chars[n++] = '\uFFFD';
+        }
+        return n;
+    }
+
+    // skips the rest of a string, after the opening quote
+    private void skipString() throws IOException {
+        while (true) {
+            int b = next();
+            if (b == '"') return;
+            if (b == '\\') next();  // the escaped character, e.g. a quote
+        }
+    }
+
+    private IOException syntaxError(String message) {
+        return new IOException("Malformed JSON: " + message + " at byte " + (offset + pos));
+    }
+
+}
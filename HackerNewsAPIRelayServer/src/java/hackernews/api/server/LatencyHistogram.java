@@ -0,0 +1,145 @@
+package hackernews.api.server;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import org.bson.Document;
+
+/**
+ * A log-bucketed latency histogram in the style of HdrHistogram.
+ * <p>
+ * Values from 0 to 63 are counted exactly; above that, every power-of-two
+ * range is split into 32 equal buckets, so any recorded value is off by at
+ * most ~3% when read back. Values above ~49 days (2^32 ms) are counted as
+ * that maximum. The whole histogram is a fixed array of 896 counters (about
+ * 7 KB), no matter how many values are recorded.
+ * <p>
+ * Recording is lock-free, and histograms covering different time windows can
+ * be merged into one with {@link #add(LatencyHistogram)}.
+ *
+ * @author Stephen Xie &lt;[redacted]@andrew.cmu.edu&gt;
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 6;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;  // exact values below this
+    private static final int HALF = SUB_BUCKETS / 2;  // buckets per power of two above that
+    private static final int MAX_SHIFT = 32 - SUB_BUCKET_BITS;
+    private static final long MAX_VALUE = (1L << 32) - 1;
+    private static final int BUCKETS = SUB_BUCKETS + MAX_SHIFT * HALF;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+
+    /**
+     * Records a value.
+     *
+     * @param value the value, e.g. a latency in milliseconds; negative values
+     *              count as 0
+     */
+    public void record(long value) {
+        counts.incrementAndGet(indexOf(value));
+    }
+
+    /**
+     * Adds all the counts of another histogram to this one.
+     *
+     * @param other the other histogram
+     */
+    public void add(LatencyHistogram other) {
+        for (int i = 0; i < BUCKETS; i++) {
+            long c = other.counts.get(i);
+            if (c != 0)
+                counts.addAndGet(i, c);
+        }
+    }
+
+    /**
+     * Clears all counts.
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++)
+            counts.set(i, 0);
+    }
+
+    /**
+     * @return number of values recorded
+     */
+    public long getCount() {
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++)
+            total += counts.get(i);
+        return total;
+    }
+
+    /**
+     * Returns the value below which the given percentage of the recorded
+     * values fall.
+     *
+     * @param percentile the percentage, e.g. 99.9
+     * @return the value at the percentile, or -1 if nothing is recorded
+     */
+    public long getValueAtPercentile(double percentile) {
+        long[] snapshot = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts.get(i);
+            total += snapshot[i];
+        }
+        if (total == 0) return -1;
+
+        // rank of the value we're looking for, starting from 1
+        long rank = Math.max(1, (long) Math.ceil(Math.min(percentile, 100) / 100 * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank)
+                return highestValueOf(i);
+        }
+        return highestValueOf(BUCKETS - 1);
+    }
+
+    // bucket index of a value
+    private static int indexOf(long value) {
+        if (value < SUB_BUCKETS) return (int) Math.max(value, 0);
+        value = Math.min(value, MAX_VALUE);
+        int shift = (64 - Long.numberOfLeadingZeros(value)) - SUB_BUCKET_BITS;
+        return SUB_BUCKETS + (shift - 1) * HALF + (int) ((value >>> shift) - HALF);
+    }
+
+    // highest value that falls into a bucket
+    private static long highestValueOf(int index) {
+        if (index < SUB_BUCKETS) return index;
+        int shift = (index - SUB_BUCKETS) / HALF + 1;
+        long mantissa = (index - SUB_BUCKETS) % HALF + HALF;
+        return ((mantissa + 1) << shift) - 1;
+    }
+
+    // --- persistence --------------------------------------------------
+
+    /**
+     * @return the non-empty buckets as a document of {bucket index: count}
+     */
+    public Document toDocument() {
+        Document doc = new Document();
+        for (int i = 0; i < BUCKETS; i++) {
+            long c = counts.get(i);
+            if (c != 0)
+                doc.append(Integer.toString(i), c);
+        }
+        return doc;
+    }
+
+    /**
+     * @param doc a document made by {@link #toDocument()}
+     * @return the histogram held by the document
+     */
+    public static LatencyHistogram fromDocument(Document doc) {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (String key : doc.keySet()) {
+            int i = Integer.parseInt(key);
+            if (i >= 0 && i < BUCKETS)
+                histogram.counts.set(i, ((Number) doc.get(key)).longValue());
+        }
+        return histogram;
+    }
+
+}
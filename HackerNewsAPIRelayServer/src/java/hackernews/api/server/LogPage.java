@@ -0,0 +1,49 @@
+package hackernews.api.server;
+
+import java.util.List;
+
+/**
+ * One page of log records, newest first, as returned by the log accessors of
+ * {@link APIUsageLogger}.
+ *
+ * @author Stephen Xie &lt;[redacted]@andrew.cmu.edu&gt;
+ */
+public class LogPage {
+
+    private final List<String[]> records;
+    private final String nextCursor;
+
+
+    /**
+     * @param records records on this page
+     * @param nextCursor opaque cursor to pass in to get the next (older)
+     *                   page, or null if this is the last page
+     */
+    public LogPage(List<String[]> records, String nextCursor) {
+        this.records = records;
+        this.nextCursor = nextCursor;
+    }
+
+    /**
+     * @return records on this page
+     */
+    public List<String[]> getRecords() {
+        return records;
+    }
+
+    /**
+     * @return opaque cursor to pass in to get the next (older) page, or null
+     *         if this is the last page
+     */
+    public String getNextCursor() {
+        return nextCursor;
+    }
+
+    /**
+     * @return whether this page has no record
+     */
+    public boolean isEmpty() {
+        return records.isEmpty();
+    }
+
+}
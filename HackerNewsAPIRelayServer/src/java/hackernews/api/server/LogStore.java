@@ -0,0 +1,127 @@
+package hackernews.api.server;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import org.bson.Document;
+
+/**
+ * Storage backend of {@link APIUsageLogger}.
+ * <p>
+ * Log records are grouped into named collections (HNApiQueryLatency,
+ * StoryQueried, HNApiDownTime and MalformedRequest) and represented as
+ * documents, whatever the backend stores them as. Records of a collection are
+ * kept in the order they're appended.
+ * <p>
+ * Implementations:
+ * <ul>
+ *     <li>{@link MongoLogStore}: the remote MongoDB database.</li>
+ *     <li>{@link AppendOnlyLogStore}: memory-mapped append-only files on the
+ *         local disk; needs no network service.</li>
+ * </ul>
+ *
+ * @author Stephen Xie &lt;[redacted]@andrew.cmu.edu&gt;
+ */
+public interface LogStore {
+
+    /**
+     * Appends a batch of records to a collection.
+     *
+     * @param collection name of the collection
+     * @param records the records, in order
+     * @throws IOException if the records can't be written
+     */
+    void append(String collection, List<Document> records) throws IOException;
+
+    /**
+     * Reads one page of a collection, newest first.
+     *
+     * @param collection name of the collection
+     * @param cursor cursor returned with the previous page, or null for the
+     *               first page; ignored if malformed
+     * @param pageSize maximum number of records on the page
+     * @param from only include records appended at or after this Unix time;
+     *             0 for no lower limit
+     * @param to only include records appended before this Unix time; 0 for no
+     *           upper limit
+     * @param mapper turns a record into a row of the page
+     * @return the page
+     * @throws IOException if the records can't be read
+     */
+    LogPage findPage(String collection, String cursor, int pageSize, long from, long to,
+            Function<Document, String[]> mapper) throws IOException;
+
+    /**
+     * Goes through all the records of a collection, oldest first.
+     *
+     * @param collection name of the collection
+     * @param visitor called with each record
+     * @throws IOException if the records can't be read
+     */
+    void scan(String collection, Consumer<Document> visitor) throws IOException;
+
+    /**
+     * Rebuilds the summary from the log collections, for when none has been
+     * saved yet: the totals of {@link UsageAggregates#toDocument()}, and the
+     * most queried stories as {@link SpaceSaving#toDocuments()} under
+     * <code>storyRanking</code>.
+     * <p>
+     * This default goes through every record with
+     * {@link #scan(String, Consumer)}; stores that can aggregate on their own
+     * side should do so instead, so that the records aren't all read back.
+     *
+     * @param rankingSize number of most queried stories to keep
+     * @return the summary document
+     * @throws IOException if the records can't be read
+     */
+    default Document rebuildSummary(int rankingSize) throws IOException {
+        Map<String, long[]> latencies = new HashMap<>();  // type -> {count, sum}
+        scan("HNApiQueryLatency", record -> {
+            long[] totals = latencies.computeIfAbsent(record.getString("type"), k -> new long[2]);
+            totals[0]++;
+            totals[1] += ((Number) record.get("time")).longValue();
+        });
+        long[] storyQueries = new long[1];
+        SpaceSaving ranking = new SpaceSaving(rankingSize);
+        scan("StoryQueried", story -> {
+            storyQueries[0]++;
+            ranking.offer(story.getString("id"), story.getString("title"));
+        });
+        long[] apiDown = {0, Long.MAX_VALUE};  // {count, earliest date}
+        scan("HNApiDownTime", record -> {
+            apiDown[0]++;
+            apiDown[1] = Math.min(apiDown[1], ((Number) record.get("date")).longValue());
+        });
+        long[] malformed = new long[1];
+        scan("MalformedRequest", record -> malformed[0]++);
+
+        UsageAggregates rebuilt = new UsageAggregates();
+        for (Map.Entry<String, long[]> e : latencies.entrySet())
+            rebuilt.setLatencyTotals(e.getKey(), e.getValue()[0], e.getValue()[1]);
+        rebuilt.setCounts(storyQueries[0], apiDown[0], apiDown[1], malformed[0]);
+        return rebuilt.toDocument().append("storyRanking", ranking.toDocuments());
+    }
+
+    /**
+     * @return the summary document last saved, or null if there's none
+     * @throws IOException if the summary can't be read
+     */
+    Document loadSummary() throws IOException;
+
+    /**
+     * Saves the summary document, replacing the previous one.
+     *
+     * @param summary the summary document
+     * @throws IOException if the summary can't be written
+     */
+    void saveSummary(Document summary) throws IOException;
+
+    /**
+     * Makes sure everything appended is stored, and releases the backend.
+     */
+    void close();
+
+}
@@ -0,0 +1,181 @@
+package hackernews.api.server;
+
+import com.mongodb.MongoClient;
+import com.mongodb.MongoClientURI;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.Accumulators;
+import com.mongodb.client.model.Aggregates;
+import static com.mongodb.client.model.Filters.and;
+import static com.mongodb.client.model.Filters.eq;
+import static com.mongodb.client.model.Filters.gte;
+import static com.mongodb.client.model.Filters.lt;
+import com.mongodb.client.model.Sorts;
+import com.mongodb.client.model.UpdateOptions;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.bson.types.ObjectId;
+
+/**
+ * Log storage in a MongoDB database; each log collection is a MongoDB
+ * collection of the same name, and the summary document lives in the
+ * UsageSummary collection.
+ * <p>
+ * References:
+ * <ul>
+ *     <li>MongoDB Java Driver Documentation: http://api.mongodb.com/java/current/</li>
+ *     <li>MongoDB Java driver on read operation: http://mongodb.github.io/mongo-java-driver/3.4/driver/tutorials/perform-read-operations/</li>
+ *     <li>MongoDB Java driver on aggregation: http://mongodb.github.io/mongo-java-driver/3.4/driver/tutorials/aggregation/</li>
+ * </ul>
+ *
+ * @author Stephen Xie &lt;[redacted]@andrew.cmu.edu&gt;
+ */
+public class MongoLogStore implements LogStore {
+
+    private final MongoClient mongoClient;
+    private final MongoDatabase db;
+
+
+    /**
+     * Connects to a MongoDB database.
+     *
+     * @param uri URI of the database
+     */
+    public MongoLogStore(String uri) {
+        MongoClientURI mongoUri = new MongoClientURI(uri);
+        mongoClient = new MongoClient(mongoUri);
+        // get the database
+        db = mongoClient.getDatabase(mongoUri.getDatabase());
+    }
+
+    @Override
+    public void append(String collection, List<Document> records) {
+        // the collection is created if not exists
+        db.getCollection(collection).insertMany(records);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Pages are found by key (records older than the cursor's
+     * <code>_id</code>), not by skipping, so every page costs the same no
+     * matter how deep it is. The time range is matched against the creation
+     * time embedded in <code>_id</code>, so it works for every collection.
+     */
+    @Override
+    public LogPage findPage(String collection, String cursor, int pageSize, long from, long to,
+            Function<Document, String[]> mapper) {
+        List<Bson> filters = new ArrayList<>();
+        if (cursor != null && ObjectId.isValid(cursor))
+            filters.add(lt("_id", new ObjectId(cursor)));
+        if (from > 0)
+            filters.add(gte("_id", objectIdAt(from)));
+        if (to > 0)
+            filters.add(lt("_id", objectIdAt(to)));
+        Bson filter = filters.isEmpty() ? new Document() : and(filters);
+
+        // read one record more than needed to find out if there's a next page
+        List<String[]> records = new ArrayList<>(pageSize);
+        ObjectId lastId = null;
+        boolean hasMore = false;
+        try (
+                MongoCursor<Document> it = db.getCollection(collection).find(filter)
+                        .sort(Sorts.descending("_id"))
+                        .limit(pageSize + 1)
+                        .iterator()
+                ) {
+            while (it.hasNext()) {
+                Document doc = it.next();
+                if (records.size() == pageSize) {
+                    hasMore = true;
+                    break;
+                }
+                records.add(mapper.apply(doc));
+                lastId = doc.getObjectId("_id");
+            }
+        }
+
+        return new LogPage(records, (hasMore && lastId != null) ? lastId.toHexString() : null);
+    }
+
+    @Override
+    public void scan(String collection, Consumer<Document> visitor) {
+        try (
+                MongoCursor<Document> it = db.getCollection(collection).find()
+                        .sort(Sorts.ascending("_id"))
+                        .iterator()
+                ) {
+            while (it.hasNext()) {
+                visitor.accept(it.next());
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The totals and the ranking are computed by aggregation pipelines on
+     * the database server; only the results come over the wire.
+     */
+    @Override
+    public Document rebuildSummary(int rankingSize) {
+        UsageAggregates rebuilt = new UsageAggregates();
+        for (Document totals : db.getCollection("HNApiQueryLatency").aggregate(Arrays.asList(
+                Aggregates.group("$type", Accumulators.sum("count", 1), Accumulators.sum("sum", "$time"))
+        ))) {
+            rebuilt.setLatencyTotals(totals.getString("_id"),
+                    ((Number) totals.get("count")).longValue(),
+                    ((Number) totals.get("sum")).longValue());
+        }
+        Document downTime = db.getCollection("HNApiDownTime").aggregate(Arrays.asList(
+                Aggregates.group(null, Accumulators.sum("count", 1), Accumulators.min("earliest", "$date"))
+        )).first();
+        rebuilt.setCounts(
+                db.getCollection("StoryQueried").count(),
+                (downTime != null) ? ((Number) downTime.get("count")).longValue() : 0,
+                (downTime != null) ? ((Number) downTime.get("earliest")).longValue() : Long.MAX_VALUE,
+                db.getCollection("MalformedRequest").count());
+
+        List<Document> ranking = new ArrayList<>();
+        for (Document story : db.getCollection("StoryQueried").aggregate(Arrays.asList(
+                // in append order, so that the last title is the latest one
+                Aggregates.sort(Sorts.ascending("_id")),
+                Aggregates.group("$id", Accumulators.sum("count", 1), Accumulators.last("title", "$title")),
+                Aggregates.sort(Sorts.descending("count")),
+                Aggregates.limit(rankingSize)
+        ))) {
+            ranking.add(new Document("id", story.getString("_id"))
+                    .append("title", story.getString("title"))
+                    .append("count", story.get("count")));
+        }
+        return rebuilt.toDocument().append("storyRanking", ranking);
+    }
+
+    @Override
+    public Document loadSummary() {
+        return db.getCollection("UsageSummary").find(eq("_id", "aggregates")).first();
+    }
+
+    @Override
+    public void saveSummary(Document summary) {
+        db.getCollection("UsageSummary").replaceOne(eq("_id", "aggregates"),
+                new Document(summary).append("_id", "aggregates"),
+                new UpdateOptions().upsert(true));
+    }
+
+    @Override
+    public void close() {
+        mongoClient.close();
+    }
+
+    // smallest ObjectId created at the given Unix time
+    private static ObjectId objectIdAt(long unixTime) {
+        return new ObjectId(String.format("%08x0000000000000000", unixTime));
+    }
+
+}
@@ -0,0 +1,177 @@
+package hackernews.api.server;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A value that's rebuilt in the background on a fixed interval and served
+ * from memory in between (stale-while-revalidate).
+ * <p>
+ * Readers always get the latest successfully built snapshot right away; only
+ * the very first readers, arriving before any snapshot exists, have to wait
+ * for a build. A failed refresh keeps the previous snapshot in place, so the
+ * amount of work done upstream stays constant no matter how many readers
+ * there are.
+ *
+ * @param <T> type of the snapshot
+ * @author Stephen Xie &lt;[redacted]@andrew.cmu.edu&gt;
+ */
+public class RefreshingSnapshot<T> {
+
+    private final String name;
+    private final Callable<T> loader;  // builds a fresh snapshot
+    private final long interval;  // refresh interval, in milliseconds
+
+    private volatile T snapshot = null;  // latest successfully built snapshot
+    private volatile long builtAt = 0;  // when the snapshot was built, in milliseconds since epoch
+    private volatile boolean stale = false;  // whether the last build failed
+    private final Object buildLock = new Object();  // only one build at a time
+
+    private ScheduledExecutorService scheduler;
+
+
+    /**
+     * @param name name of the snapshot, also used to name the refresher thread
+     * @param loader builds a fresh snapshot; it may throw to signal failure
+     * @param interval refresh interval, in milliseconds
+     */
+    public RefreshingSnapshot(String name, Callable<T> loader, long interval) {
+        this.name = name;
+        this.loader = loader;
+        this.interval = interval;
+    }
+
+    /**
+     * Starts refreshing the snapshot in the background; the first build is
+     * kicked off right away.
+     */
+    public synchronized void start() {
+        if (scheduler != null) return;
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, name + "-refresher");
+            t.setDaemon(true);
+            return t;
+        });
+        scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                refresh();
+            } catch (ExecutionException ex) {
+                // keep serving the previous snapshot
+                Logger.getLogger(RefreshingSnapshot.class.getName()).log(Level.WARNING,
+                        "Failed to refresh " + name, ex.getCause());
+            }
+        }, 0, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops the background refresh.
+     */
+    public synchronized void stop() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+    }
+
+    /**
+     * Returns the latest snapshot, building one first if none exists yet.
+     *
+     * @return the latest snapshot
+     * @throws ExecutionException if no snapshot exists and building one failed
+     */
+    public T get() throws ExecutionException {
+        T current = snapshot;
+        if (current != null) return current;
+
+        synchronized (buildLock) {
+            // someone else may have finished a build while we were waiting
+            if (snapshot != null) return snapshot;
+            return build();
+        }
+    }
+
+    /**
+     * Returns the latest snapshot without blocking the caller; if no snapshot
+     * exists yet, one is built on the refresher thread.
+     *
+     * @return future completed with the latest snapshot, or completed
+     *         exceptionally with the loader's exception if no snapshot exists
+     *         and building one failed
+     */
+    public CompletableFuture<T> getAsync() {
+        T current = snapshot;
+        if (current != null) return CompletableFuture.completedFuture(current);
+
+        CompletableFuture<T> future = new CompletableFuture<>();
+        Runnable build = () -> {
+            try {
+                future.complete(get());
+            } catch (ExecutionException ex) {
+                future.completeExceptionally(ex.getCause());
+            }
+        };
+        synchronized (this) {
+            if (scheduler != null) {
+                scheduler.execute(build);
+                return future;
+            }
+        }
+        build.run();  // not started; build on the caller's thread
+        return future;
+    }
+
+    /**
+     * Builds a fresh snapshot right now and makes it the current one.
+     *
+     * @return the fresh snapshot
+     * @throws ExecutionException if building the snapshot failed; the previous
+     *                            snapshot is kept in this case
+     */
+    public T refresh() throws ExecutionException {
+        synchronized (buildLock) {
+            return build();
+        }
+    }
+
+    // must be called while holding buildLock
+    private T build() throws ExecutionException {
+        T fresh;
+        try {
+            fresh = loader.call();
+        } catch (Exception ex) {
+            stale = (snapshot != null);
+            throw new ExecutionException(ex);
+        }
+        if (fresh == null) {
+            stale = (snapshot != null);
+            throw new ExecutionException(new IllegalStateException(name + " loader returned null"));
+        }
+        snapshot = fresh;
+        builtAt = System.currentTimeMillis();
+        stale = false;
+        return fresh;
+    }
+
+    /**
+     * @return whether the last attempt to rebuild the snapshot failed, i.e.
+     *         the current snapshot is outdated
+     */
+    public boolean isStale() {
+        return stale;
+    }
+
+    /**
+     * @return when the current snapshot was built, in milliseconds since
+     *         epoch, or 0 if there's no snapshot yet
+     */
+    public long getBuiltAt() {
+        return builtAt;
+    }
+
+}
@@ -0,0 +1,234 @@
+package hackernews.api.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A response body encoded to bytes, with its entity tag.
+ * <p>
+ * The entity tag is a strong one: a hash of the exact bytes, so two responses
+ * get the same tag if and only if (short of a hash collision) they're byte
+ * for byte the same. A client holding the tag can then be answered with
+ * <code>304 Not Modified</code> instead of the body.
+ * <p>
+ * The body is also available compressed, for the content codings in
+ * {@link Encoding}. Each compressed copy is made the first time it's asked
+ * for and then kept with the response, so a cached response is compressed
+ * once per coding rather than on every request. Every coding of the body
+ * has an entity tag of its own, as required of strong tags.
+ * <p>
+ * Instances are immutable apart from the compressed copies, which are
+ * derived from the body; they can be cached and shared between requests.
+ *
+ * @author Stephen Xie &lt;[redacted]@andrew.cmu.edu&gt;
+ */
+final class RenderedResponse {
+
+    /**
+     * Content codings the body can be sent in.
+     */
+    enum Encoding {
+        IDENTITY(null), GZIP("gzip"), DEFLATE("deflate");
+
+        final String token;  // as in Accept-Encoding and Content-Encoding
+
+        Encoding(String token) {
+            this.token = token;
+        }
+    }
+
+    // bodies smaller than this aren't worth compressing
+    private static final int MIN_COMPRESSED_SIZE = 1024;
+
+    final byte[] body;  // UTF-8 JSON
+    final String etag;  // quoted, as sent in the ETag header
+    final boolean stale;  // whether it's built from outdated data
+    final boolean partial;  // whether something was left out, e.g. a truncated comment tree
+    final String title;  // title of the story shown, for the usage log; null for other responses
+    // compressed bodies by coding, made on demand
+    private final AtomicReferenceArray<byte[]> encoded = new AtomicReferenceArray<>(Encoding.values().length);
+
+
+    /**
+     * @param body the encoded response body
+     * @param stale whether it's built from outdated data
+     * @param partial whether something was left out of it
+     */
+    RenderedResponse(byte[] body, boolean stale, boolean partial) {
+        this(body, stale, partial, null);
+    }
+
+    /**
+     * @param body the encoded response body
+     * @param stale whether it's built from outdated data
+     * @param partial whether something was left out of it
+     * @param title title of the story shown, so that serving the response
+     *              from the cache can still log the story query; null if
+     *              it's not a story
+     */
+    RenderedResponse(byte[] body, boolean stale, boolean partial, String title) {
+        this.body = body;
+        this.etag = etag(body);
+        this.stale = stale;
+        this.partial = partial;
+        this.title = title;
+    }
+
+    /**
+     * @return whether the response may be cached, by the server or by clients
+     */
+    boolean isCacheable() {
+        return !stale && !partial;
+    }
+
+    /**
+     * Picks the coding to send the body in.
+     * <p>
+     * A coding the client lists is accepted unless its q-value is 0; one it
+     * doesn't list is accepted if <code>*</code> is, and identity is also
+     * accepted if neither is listed. So <code>*;q=1, gzip;q=0</code> gets
+     * deflate, and <code>identity;q=0, *</code> gets gzip even for a small
+     * body.
+     *
+     * @param acceptEncoding value of the <code>Accept-Encoding</code> request
+     *                       header, or null if absent
+     * @return the first of gzip and deflate the client accepts, or identity
+     *         if it accepts neither, or if the body is too small to bother
+     *         and the client didn't refuse identity
+     */
+    Encoding negotiate(String acceptEncoding) {
+        if (acceptEncoding == null)
+            return Encoding.IDENTITY;
+        // null: not listed; else whether accepted
+        Boolean gzip = null, deflate = null, identity = null, any = null;
+        for (String coding : acceptEncoding.split(",")) {
+            // e.g. "gzip;q=0.8"; a q-value of 0 means not acceptable
+            String[] parts = coding.split(";");
+            String name = parts[0].trim().toLowerCase();
+            boolean accepted = true;
+            for (int i = 1; i < parts.length; i++) {
+                String param = parts[i].trim();
+                if (param.startsWith("q=")) {
+                    try {
+                        accepted = Double.parseDouble(param.substring(2)) > 0;
+                    } catch (NumberFormatException e) {
+                        accepted = false;
+                    }
+                }
+            }
+            switch (name) {
+                case "gzip": case "x-gzip": gzip = accepted; break;
+                case "deflate": deflate = accepted; break;
+                case "identity": identity = accepted; break;
+                case "*": any = accepted; break;
+                default: break;
+            }
+        }
+        if (body.length < MIN_COMPRESSED_SIZE && accepted(identity, any, true))
+            return Encoding.IDENTITY;
+        if (accepted(gzip, any, false)) return Encoding.GZIP;
+        if (accepted(deflate, any, false)) return Encoding.DEFLATE;
+        // nothing else acceptable either; identity beats a 406
+        return Encoding.IDENTITY;
+    }
+
+    // whether a coding is acceptable, given whether it and "*" are listed
+    // as accepted (null if not listed), and whether it's acceptable when
+    // neither is listed
+    private static boolean accepted(Boolean coding, Boolean any, boolean byDefault) {
+        if (coding != null) return coding;
+        if (any != null) return any;
+        return byDefault;
+    }
+
+    /**
+     * @param encoding a content coding
+     * @return the body in that coding; compressed on the first call only
+     */
+    byte[] body(Encoding encoding) {
+        if (encoding == Encoding.IDENTITY) return body;
+        byte[] bytes = encoded.get(encoding.ordinal());
+        if (bytes == null) {
+            // two threads may both compress it; the first one's copy is kept
+            encoded.compareAndSet(encoding.ordinal(), null, compress(body, encoding));
+            bytes = encoded.get(encoding.ordinal());
+        }
+        return bytes;
+    }
+
+    /**
+     * @param encoding a content coding
+     * @return entity tag of the body in that coding, quoted
+     */
+    String etag(Encoding encoding) {
+        if (encoding == Encoding.IDENTITY) return etag;
+        return etag.substring(0, etag.length() - 1) + '-' + encoding.token + '"';
+    }
+
+    /**
+     * Tells whether the value of an <code>If-None-Match</code> request header
+     * matches this response in the given coding, i.e. the client already has
+     * it.
+     *
+     * @param ifNoneMatch the header value, or null if absent
+     * @param encoding the content coding the body would be sent in
+     * @return whether any of the listed tags is this response's, or the value
+     *         is <code>*</code>; tags are compared weakly, as
+     *         <code>If-None-Match</code> requires (RFC 7232, section 3.2), so
+     *         a <code>W/</code> prefix is ignored, e.g. the one a proxy adds
+     *         when it compresses the body itself
+     */
+    boolean matches(String ifNoneMatch, Encoding encoding) {
+        if (ifNoneMatch == null) return false;
+        String current = etag(encoding);
+        for (String tag : ifNoneMatch.split(",")) {
+            tag = tag.trim();
+            if (tag.startsWith("W/"))
+                tag = tag.substring(2);
+            if (tag.equals("*") || tag.equals(current))
+                return true;
+        }
+        return false;
+    }
+
+    // rough estimate of the memory used by this object, in bytes; JSON
+    // compresses well, so half the body is plenty for the compressed copies
+    int weight() {
+        return 128 + body.length + body.length / 2 + 2 * etag.length() + Item.weight(title);
+    }
+
+    private static byte[] compress(byte[] body, Encoding encoding) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(body.length / 4 + 64);
+        try (DeflaterOutputStream out = (encoding == Encoding.GZIP)
+                ? new GZIPOutputStream(bytes, 8192)
+                : new DeflaterOutputStream(bytes)) {
+            out.write(body);
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);  // can't happen writing to memory
+        }
+        return bytes.toByteArray();
+    }
+
+    // first 128 bits of the SHA-256 hash, in hex and quoted
+    private static String etag(byte[] body) {
+        byte[] hash;
+        try {
+            hash = MessageDigest.getInstance("SHA-256").digest(body);
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError("SHA-256 is supported by every JVM", e);
+        }
+        StringBuilder tag = new StringBuilder(34).append('"');
+        for (int i = 0; i < 16; i++) {
+            tag.append(Character.forDigit((hash[i] >> 4) & 0xf, 16))
+                    .append(Character.forDigit(hash[i] & 0xf, 16));
+        }
+        return tag.append('"').toString();
+    }
+
+}
@@ -0,0 +1,90 @@
+package hackernews.api.server;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Per-key deduplication of in-flight calls ("single flight").
+ * <p>
+ * The first caller for a key runs the actual call; every caller that comes in
+ * for the same key while that call is still running waits on the same shared
+ * future instead of issuing a call of its own. Once the call finishes the key
+ * is released, so a later caller starts a fresh call. A thundering herd for
+ * the same item therefore turns into a single upstream request.
+ *
+ * @param <K> type of the keys
+ * @param <V> type of the call results
+ * @author Stephen Xie &lt;[redacted]@andrew.cmu.edu&gt;
+ */
+public class SingleFlight<K, V> {
+
+    private final ConcurrentHashMap<K, CompletableFuture<V>> inFlight = new ConcurrentHashMap<>();
+
+    private final AtomicLong calls = new AtomicLong();  // all calls made through this
+    private final AtomicLong coalesced = new AtomicLong();  // calls that joined a running one
+
+
+    /**
+     * Runs the given call for a key, or waits for the result of the same call
+     * if it's already running.
+     *
+     * @param key key identifying the call
+     * @param call the actual call
+     * @return result of the call
+     * @throws ExecutionException if the call threw, or the call shared threw
+     *         an Error; the cause is the original exception
+     * @throws InterruptedException if interrupted while waiting for another caller's call
+     */
+    public V execute(K key, Callable<V> call) throws ExecutionException, InterruptedException {
+        calls.incrementAndGet();
+
+        CompletableFuture<V> mine = new CompletableFuture<>();
+        CompletableFuture<V> running = inFlight.putIfAbsent(key, mine);
+        if (running != null) {
+            // someone is already on it; share that result
+            coalesced.incrementAndGet();
+            return running.get();
+        }
+
+        try {
+            V result = call.call();
+            mine.complete(result);
+            return result;
+        } catch (Exception ex) {
+            mine.completeExceptionally(ex);
+            throw new ExecutionException(ex);
+        } catch (Throwable t) {
+            // an Error; the callers waiting on this call mustn't hang
+            mine.completeExceptionally(t);
+            throw t;
+        } finally {
+            inFlight.remove(key, mine);
+        }
+    }
+
+    /**
+     * @return number of calls made through this
+     */
+    public long getCallCount() {
+        return calls.get();
+    }
+
+    /**
+     * @return number of calls that shared the result of an already running one
+     */
+    public long getCoalescedCount() {
+        return coalesced.get();
+    }
+
+    /**
+     * @return ratio of calls that were coalesced, or 0 if there's no call yet
+     */
+    public double getCoalesceRate() {
+        long total = calls.get();
+        return (total == 0) ? 0 : coalesced.get() / (double) total;
+    }
+
+}
@@ -0,0 +1,171 @@
+package hackernews.api.server;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.bson.Document;
+
+/**
+ * Streaming top-K tracker of story queries, using the Space-Saving algorithm.
+ * <p>
+ * At most <code>capacity</code> stories are tracked. When a story that isn't
+ * tracked comes in and the tracker is full, it takes over the slot of the
+ * story with the lowest count, inheriting that count as its possible error.
+ * Any story queried more than <code>total / capacity</code> times is
+ * guaranteed to be tracked, and the reported counts overestimate the true
+ * ones by at most their error. Memory use is bounded by the capacity, no
+ * matter how many queries come in.
+ * <p>
+ * Titles are kept next to the counts, so no lookup is needed to show them.
+ *
+ * @author Stephen Xie &lt;[redacted]@andrew.cmu.edu&gt;
+ */
+public class SpaceSaving {
+
+    /**
+     * A tracked story.
+     */
+    public static class Entry {
+        private final String id;
+        private String title;
+        private long count;  // upper bound of the true count
+        private long error;  // how much count may overestimate the true count
+
+        Entry(String id, String title, long count, long error) {
+            this.id = id;
+            this.title = title;
+            this.count = count;
+            this.error = error;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public String getTitle() {
+            return title;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getError() {
+            return error;
+        }
+    }
+
+    private static final Comparator<Entry> BY_COUNT_DESC =
+            Comparator.comparingLong(Entry::getCount).reversed();
+
+    private final int capacity;
+    private final Map<String, Entry> entries;
+
+
+    /**
+     * @param capacity maximum number of stories tracked
+     */
+    public SpaceSaving(int capacity) {
+        this.capacity = capacity;
+        this.entries = new HashMap<>(capacity * 2);
+    }
+
+    /**
+     * Counts a query of a story.
+     *
+     * @param id story ID
+     * @param title story title
+     */
+    public void offer(String id, String title) {
+        offer(id, title, 1, 0);
+    }
+
+    private synchronized void offer(String id, String title, long count, long error) {
+        Entry entry = entries.get(id);
+        if (entry != null) {
+            entry.count += count;
+            entry.error += error;
+            entry.title = title;  // titles can be edited
+            return;
+        }
+        if (entries.size() < capacity) {
+            entries.put(id, new Entry(id, title, count, error));
+            return;
+        }
+
+        // full: replace the story with the lowest count; the capacity is
+        // small, so a scan is cheaper than keeping a heap in sync
+        Entry min = null;
+        for (Entry e : entries.values()) {
+            if (min == null || e.count < min.count)
+                min = e;
+        }
+        entries.remove(min.id);
+        entries.put(id, new Entry(id, title, min.count + count, min.count + error));
+    }
+
+    /**
+     * Adds all the counts of another tracker to this one.
+     *
+     * @param other the other tracker
+     */
+    public void add(SpaceSaving other) {
+        for (Entry e : other.top(other.capacity)) {
+            offer(e.id, e.title, e.count, e.error);
+        }
+    }
+
+    /**
+     * Clears all counts.
+     */
+    public synchronized void reset() {
+        entries.clear();
+    }
+
+    /**
+     * @param k number of stories to return
+     * @return the (at most) <code>k</code> stories with the highest counts,
+     *         highest first
+     */
+    public synchronized List<Entry> top(int k) {
+        List<Entry> sorted = new ArrayList<>(entries.size());
+        for (Entry e : entries.values()) {
+            sorted.add(new Entry(e.id, e.title, e.count, e.error));  // a snapshot
+        }
+        sorted.sort(BY_COUNT_DESC);
+        return (sorted.size() > k) ? sorted.subList(0, k) : sorted;
+    }
+
+    // --- persistence --------------------------------------------------
+
+    /**
+     * @return all tracked stories as a list of {id, title, count, error} documents
+     */
+    public List<Document> toDocuments() {
+        List<Document> docs = new ArrayList<>();
+        for (Entry e : top(capacity)) {
+            docs.add(new Document("id", e.id)
+                    .append("title", e.title)
+                    .append("count", e.count)
+                    .append("error", e.error));
+        }
+        return docs;
+    }
+
+    /**
+     * Adds stories stored by {@link #toDocuments()} to this tracker.
+     *
+     * @param docs the documents
+     */
+    public void addDocuments(List<Document> docs) {
+        for (Document doc : docs) {
+            Number error = (Number) doc.get("error");
+            offer(doc.getString("id"), doc.getString("title"),
+                    ((Number) doc.get("count")).longValue(),
+                    (error != null) ? error.longValue() : 0);
+        }
+    }
+
+}
@@ -0,0 +1,32 @@
+package hackernews.api.server;
+
+/**
+ * A helper class representing the data structure of a HackerNews story.
+ * Stories are decoded from the HackerNews API by {@link ItemDecoder}.
+ * 
+ * @author Stephen Xie &lt;[redacted]@andrew.cmu.edu&gt;
+ */
+class Story extends Item {
+    public final String title;  // title of the story
+    public final String url;  // URL of the story
+
+    
+    public Story(long id, String by, String title, long time, String url, long[] comments) {
+        super(id, by, time, comments);
+        this.title = title;
+        this.url = url;
+    }
+    
+    @Override
+    Story asStale() {
+        Story copy = new Story(id, by, title, time, url, comments);
+        copy.stale = true;
+        return copy;
+    }
+    
+    @Override
+    public int weight() {
+        return super.weight() + 8 + weight(title) + weight(url);
+    }
+    
+}
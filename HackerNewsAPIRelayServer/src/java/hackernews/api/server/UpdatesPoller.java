@@ -0,0 +1,150 @@
+package hackernews.api.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Polls the changed items feed of the Hacker News API
+ * (<code>/v0/updates.json</code>) in the background, and reports the IDs of
+ * the items that changed.
+ * <p>
+ * The feed only lists the items changed over the last few minutes, so it has
+ * to be polled well within that; a change missed while the API is down is
+ * picked up when the item's cache entry expires.
+ *
+ * @author Stephen Xie &lt;[redacted]@andrew.cmu.edu&gt;
+ */
+public class UpdatesPoller {
+
+    /**
+     * Gets the IDs of changed items.
+     */
+    public interface Listener {
+        /**
+         * Called on the poller thread after each successful poll.
+         *
+         * @param ids IDs of the items changed recently; may include items
+         *            reported by the previous polls
+         */
+        void itemsChanged(long[] ids);
+    }
+
+    // the field read from the feed; profiles are of no use here
+    private static final String[] FIELDS = {"items"};
+
+    private final UpstreamClient upstream;
+    private final String url;  // e.g. https://hacker-news.firebaseio.com/v0/updates.json
+    private final long interval;  // in milliseconds
+    private final Listener listener;
+
+    private ScheduledExecutorService scheduler;
+
+    private final AtomicLong polls = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong changedItems = new AtomicLong();  // summed over all polls
+
+
+    /**
+     * @param upstream client making the requests
+     * @param url URL of the changed items feed
+     * @param interval polling interval, in milliseconds
+     * @param listener gets the IDs of changed items
+     */
+    public UpdatesPoller(UpstreamClient upstream, String url, long interval, Listener listener) {
+        this.upstream = upstream;
+        this.url = url;
+        this.interval = interval;
+        this.listener = listener;
+    }
+
+    /**
+     * Starts polling in the background; the first poll is made after one
+     * interval, as there's nothing cached to invalidate before that.
+     */
+    public synchronized void start() {
+        if (scheduler != null) return;
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "updates-poller");
+            t.setDaemon(true);
+            return t;
+        });
+        scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                poll();
+            } catch (IOException ex) {
+                Logger.getLogger(UpdatesPoller.class.getName()).log(
+                        (ex instanceof UpstreamClient.CircuitOpenException) ? Level.FINE : Level.WARNING,
+                        "Failed to poll " + url, ex);
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops polling.
+     */
+    public synchronized void stop() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+    }
+
+    /**
+     * Polls the feed once, right now, and reports the changed items.
+     *
+     * @throws IOException if the feed can't be fetched or is malformed
+     */
+    public void poll() throws IOException {
+        polls.incrementAndGet();
+        long[] ids;
+        try {
+            ids = upstream.get(url, UpdatesPoller::readItems);
+        } catch (IOException ex) {
+            failures.incrementAndGet();
+            throw ex;
+        }
+
+        changedItems.addAndGet(ids.length);
+        listener.itemsChanged(ids);
+    }
+
+    // reads the item IDs of {"items": [...], "profiles": [...]}
+    private static long[] readItems(InputStream body) throws IOException {
+        JsonReader in = new JsonReader(body);
+        long[] ids = null;
+        if (in.beginObject()) {
+            while (in.hasNext()) {
+                if (in.nextName(FIELDS) != null)
+                    ids = in.nextLongArray();
+                else
+                    in.skipValue();
+            }
+            in.endObject();
+        }
+        return (ids != null) ? ids : new long[0];
+    }
+
+    // --- statistics ---------------------------------------------------
+
+    public long getPollCount() {
+        return polls.get();
+    }
+
+    public long getFailureCount() {
+        return failures.get();
+    }
+
+    /**
+     * @return number of changed items reported, summed over all polls
+     */
+    public long getChangedItemCount() {
+        return changedItems.get();
+    }
+
+}
@@ -0,0 +1,276 @@
+package hackernews.api.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * HTTP client used for all requests to the Hacker News API.
+ * <p>
+ * Features:
+ * <ol>
+ *     <li>Connection reuse: every response body is read to the end and closed
+ *         (error bodies included), so the JDK's keep-alive cache can hand the
+ *         connection to the next request and we don't pay a TLS handshake
+ *         each time. The size of that cache is JVM-wide configuration: the
+ *         <code>http.maxConnections</code> system property (5 by default),
+ *         which the JDK reads once when the first connection is made, so it
+ *         belongs on the container's command line rather than here.</li>
+ *     <li>Connect and read timeouts, so a hung upstream can't hold a worker
+ *         forever.</li>
+ *     <li>gzip negotiation.</li>
+ *     <li>Per-call timing hooks, see {@link CallListener}.</li>
+ *     <li>An optional {@link CircuitBreaker}: while it's open, calls fail
+ *         right away with {@link CircuitOpenException} instead of waiting for
+ *         a dead upstream to time out. Network errors and <code>5xx</code>
+ *         responses count as failures; other responses show the upstream is
+ *         up.</li>
+ * </ol>
+ * <p>
+ * Note: HTTP/2 is not available through <code>HttpURLConnection</code> on
+ * Java 8, which this server targets; each keep-alive connection carries one
+ * request at a time.
+ *
+ * @author Stephen Xie &lt;[redacted]@andrew.cmu.edu&gt;
+ */
+public class UpstreamClient {
+
+    /**
+     * Reads a response body into the result of a call.
+     *
+     * @param <T> type of the result
+     */
+    public interface BodyReader<T> {
+        /**
+         * @param body the (already decompressed) response body; it's closed
+         *             by the client afterwards
+         * @return result of the call
+         * @throws IOException if the body can't be read
+         */
+        T read(InputStream body) throws IOException;
+    }
+
+    /**
+     * Gets notified of every call made through the client.
+     */
+    public interface CallListener {
+        /**
+         * @param url the URL requested
+         * @param status HTTP status code, or -1 if no response was received
+         * @param elapsed time taken by the call, in milliseconds
+         * @param failure the error raised by the call, or null if it succeeded
+         */
+        void callCompleted(String url, int status, long elapsed, IOException failure);
+    }
+
+    /**
+     * Thrown instead of making a call while the circuit breaker is open.
+     */
+    public static class CircuitOpenException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        private final long retryAfter;
+
+        public CircuitOpenException(String url, long retryAfter) {
+            super("Circuit open, not calling " + url);
+            this.retryAfter = retryAfter;
+        }
+
+        /**
+         * @return milliseconds until the breaker lets a trial call through
+         */
+        public long getRetryAfter() {
+            return retryAfter;
+        }
+    }
+
+    // reads the whole body as a UTF-8 string
+    private static final BodyReader<String> STRING_READER = body -> {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(1024);
+        byte[] buffer = new byte[8192];
+        int n;
+        while ((n = body.read(buffer)) != -1) {
+            out.write(buffer, 0, n);
+        }
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    };
+
+    private final int connectTimeout;  // in milliseconds
+    private final int readTimeout;  // in milliseconds
+    private final List<CallListener> listeners = new CopyOnWriteArrayList<>();
+    private final CircuitBreaker breaker;  // may be null
+
+    private final AtomicLong calls = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong totalTime = new AtomicLong();  // in milliseconds
+
+
+    /**
+     * @param connectTimeout connect timeout, in milliseconds
+     * @param readTimeout read timeout, in milliseconds
+     */
+    public UpstreamClient(int connectTimeout, int readTimeout) {
+        this(connectTimeout, readTimeout, null);
+    }
+
+    /**
+     * @param connectTimeout connect timeout, in milliseconds
+     * @param readTimeout read timeout, in milliseconds
+     * @param breaker circuit breaker guarding the calls, or null for none
+     */
+    public UpstreamClient(int connectTimeout, int readTimeout, CircuitBreaker breaker) {
+        this.connectTimeout = connectTimeout;
+        this.readTimeout = readTimeout;
+        this.breaker = breaker;
+    }
+
+    /**
+     * @return size of the JDK's keep-alive cache per host, as configured by
+     *         the <code>http.maxConnections</code> system property
+     */
+    public static int getMaxIdleConnections() {
+        return Integer.getInteger("http.maxConnections", 5);
+    }
+
+    /**
+     * Makes an HTTP <code>GET</code> request to a given URL and returns the
+     * raw response data.
+     *
+     * @param url URL from which the data are fetched
+     * @return raw response data, decoded as UTF-8
+     * @throws IOException error fetching content from site; either the site is
+     *                     down, or something's going wrong with our server
+     */
+    public String get(String url) throws IOException {
+        return get(url, STRING_READER);
+    }
+
+    /**
+     * Makes an HTTP <code>GET</code> request to a given URL and reads the
+     * response body with the given reader.
+     *
+     * @param <T> type of the result
+     * @param url URL from which the data are fetched
+     * @param reader reads the response body
+     * @return whatever the reader returns
+     * @throws IOException error fetching content from site, or the response
+     *                     status is not <code>200</code>
+     * @throws CircuitOpenException if the circuit breaker is open
+     */
+    public <T> T get(String url, BodyReader<T> reader) throws IOException {
+        if (breaker != null && !breaker.tryAcquire())
+            throw new CircuitOpenException(url, breaker.getRetryAfter());
+
+        long startTime = System.currentTimeMillis();
+        int status = -1;
+        boolean upstreamUp = false;  // for the circuit breaker
+        try {
+            HttpURLConnection conn = (HttpURLConnection) new URL(url).openConnection();
+            conn.setConnectTimeout(connectTimeout);
+            conn.setReadTimeout(readTimeout);
+            conn.setRequestProperty("Accept", "application/json");
+            conn.setRequestProperty("Accept-Encoding", "gzip");
+
+            status = conn.getResponseCode();
+            if (status != HttpURLConnection.HTTP_OK) {
+                upstreamUp = (status < 500);
+                drain(conn.getErrorStream());  // so the connection can be reused
+                throw new IOException("HTTP " + status + " from " + url);
+            }
+
+            T result;
+            try (
+                    InputStream body = decode(conn)
+                    ) {
+                result = reader.read(body);
+                drain(body);  // the reader may have stopped early
+            }
+            upstreamUp = true;
+            completed(url, status, startTime, null);
+            return result;
+
+        } catch (IOException ex) {
+            completed(url, status, startTime, ex);
+            throw ex;
+        } finally {
+            if (breaker != null) {
+                if (upstreamUp) breaker.onSuccess();
+                else breaker.onFailure();
+            }
+        }
+    }
+
+    // the response body, decompressed if need be
+    private static InputStream decode(HttpURLConnection conn) throws IOException {
+        InputStream in = conn.getInputStream();
+        if ("gzip".equalsIgnoreCase(conn.getContentEncoding()))
+            return new GZIPInputStream(in, 8192);
+        return in;
+    }
+
+    // reads a stream to the end and closes it
+    private static void drain(InputStream in) throws IOException {
+        if (in == null) return;
+        try {
+            byte[] buffer = new byte[4096];
+            while (in.read(buffer) != -1) {
+                // discard
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private void completed(String url, int status, long startTime, IOException failure) {
+        long elapsed = System.currentTimeMillis() - startTime;
+        calls.incrementAndGet();
+        totalTime.addAndGet(elapsed);
+        if (failure != null)
+            failures.incrementAndGet();
+        for (CallListener l : listeners) {
+            l.callCompleted(url, status, elapsed, failure);
+        }
+    }
+
+    /**
+     * Registers a listener to be notified of every call.
+     *
+     * @param listener the listener
+     */
+    public void addListener(CallListener listener) {
+        listeners.add(listener);
+    }
+
+    // --- statistics ---------------------------------------------------
+
+    /**
+     * @return number of calls made
+     */
+    public long getCallCount() {
+        return calls.get();
+    }
+
+    /**
+     * @return number of calls that failed
+     */
+    public long getFailureCount() {
+        return failures.get();
+    }
+
+    /**
+     * @return average time taken by a call, in milliseconds, or 0 if there's
+     *         no call yet
+     */
+    public double getAverageCallTime() {
+        long n = calls.get();
+        return (n == 0) ? 0 : totalTime.get() / (double) n;
+    }
+
+}
@@ -0,0 +1,193 @@
+package hackernews.api.server;
+
+import java.util.Map;
+import java.util.TreeMap;
+import org.bson.Document;
+
+/**
+ * Running totals of the API usage logs, kept up to date as log records are
+ * written so that the dashboard analytics don't need to scan the log
+ * collections.
+ * <p>
+ * The totals are persisted as a single summary document, see
+ * {@link #toDocument()} and {@link #fromDocument(Document)}.
+ *
+ * @author Stephen Xie &lt;[redacted]@andrew.cmu.edu&gt;
+ */
+public class UsageAggregates {
+
+    // query latency totals per query type: {number of records, sum of time}
+    private final Map<String, long[]> latency = new TreeMap<>();
+    private long storyQueries = 0;
+    private long apiDownCount = 0;
+    private long earliestApiDown = Long.MAX_VALUE;  // in Unix time
+    private long malformedRequests = 0;
+
+
+    /**
+     * Adds a log record that has just been written to the totals.
+     *
+     * @param collection name of the collection the record was written to
+     * @param record the record document
+     */
+    public synchronized void add(String collection, Document record) {
+        switch (collection) {
+            case "HNApiQueryLatency":
+                long[] totals = latency.computeIfAbsent(record.getString("type"), k -> new long[2]);
+                totals[0]++;
+                totals[1] += record.getLong("time");
+                break;
+
+            case "StoryQueried":
+                storyQueries++;
+                break;
+
+            case "HNApiDownTime":
+                apiDownCount++;
+                earliestApiDown = Math.min(earliestApiDown, record.getLong("date"));
+                break;
+
+            case "MalformedRequest":
+                malformedRequests++;
+                break;
+
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Sets the query latency totals of a query type, replacing the current ones.
+     *
+     * @param type query type
+     * @param count number of records
+     * @param sum sum of the time of all records, in milliseconds
+     */
+    public synchronized void setLatencyTotals(String type, long count, long sum) {
+        latency.put(type, new long[] {count, sum});
+    }
+
+    /**
+     * Sets the remaining totals, replacing the current ones.
+     *
+     * @param storyQueries number of story queries
+     * @param apiDownCount number of times the HN API was found down
+     * @param earliestApiDown Unix time of the earliest down record, if any
+     * @param malformedRequests number of malformed requests
+     */
+    public synchronized void setCounts(long storyQueries, long apiDownCount, long earliestApiDown,
+            long malformedRequests) {
+        this.storyQueries = storyQueries;
+        this.apiDownCount = apiDownCount;
+        this.earliestApiDown = (apiDownCount > 0) ? earliestApiDown : Long.MAX_VALUE;
+        this.malformedRequests = malformedRequests;
+    }
+
+    // --- totals -------------------------------------------------------
+
+    /**
+     * @return number of query latency records of all types
+     */
+    public synchronized long getLatencyCount() {
+        long count = 0;
+        for (long[] totals : latency.values())
+            count += totals[0];
+        return count;
+    }
+
+    /**
+     * @return average query latency of all types in milliseconds, or -1 if
+     *         there's no record
+     */
+    public synchronized double getAverageLatency() {
+        long count = 0, sum = 0;
+        for (long[] totals : latency.values()) {
+            count += totals[0];
+            sum += totals[1];
+        }
+        return (count == 0) ? -1 : sum / (double) count;
+    }
+
+    /**
+     * @param type query type, e.g. "getStory"
+     * @return average query latency of the given type in milliseconds, or -1
+     *         if there's no record
+     */
+    public synchronized double getAverageLatency(String type) {
+        long[] totals = latency.get(type);
+        return (totals == null || totals[0] == 0) ? -1 : totals[1] / (double) totals[0];
+    }
+
+    /**
+     * @return number of story queries
+     */
+    public synchronized long getStoryQueries() {
+        return storyQueries;
+    }
+
+    /**
+     * @return number of times the HN API was found down
+     */
+    public synchronized long getApiDownCount() {
+        return apiDownCount;
+    }
+
+    /**
+     * @return Unix time of the earliest down record, or -1 if there's none
+     */
+    public synchronized long getEarliestApiDown() {
+        return (apiDownCount == 0) ? -1 : earliestApiDown;
+    }
+
+    /**
+     * @return number of malformed requests
+     */
+    public synchronized long getMalformedRequests() {
+        return malformedRequests;
+    }
+
+    // --- persistence --------------------------------------------------
+
+    /**
+     * @return the summary document holding all the totals
+     */
+    public synchronized Document toDocument() {
+        Document latencyDoc = new Document();
+        for (Map.Entry<String, long[]> e : latency.entrySet()) {
+            latencyDoc.append(e.getKey(), new Document("count", e.getValue()[0])
+                    .append("sum", e.getValue()[1]));
+        }
+        Document doc = new Document("latency", latencyDoc)
+                .append("storyQueries", storyQueries)
+                .append("apiDownCount", apiDownCount)
+                .append("malformedRequests", malformedRequests);
+        if (apiDownCount > 0)
+            doc.append("earliestApiDown", earliestApiDown);
+        return doc;
+    }
+
+    /**
+     * @param doc a summary document made by {@link #toDocument()}
+     * @return the totals held by the document
+     */
+    public static UsageAggregates fromDocument(Document doc) {
+        UsageAggregates aggregates = new UsageAggregates();
+        Document latencyDoc = doc.get("latency", Document.class);
+        if (latencyDoc != null) {
+            for (String type : latencyDoc.keySet()) {
+                Document totals = latencyDoc.get(type, Document.class);
+                aggregates.setLatencyTotals(type, count(totals, "count", 0), count(totals, "sum", 0));
+            }
+        }
+        aggregates.setCounts(count(doc, "storyQueries", 0), count(doc, "apiDownCount", 0),
+                count(doc, "earliestApiDown", Long.MAX_VALUE), count(doc, "malformedRequests", 0));
+        return aggregates;
+    }
+
+    // a number field of the document, whatever its integer type
+    private static long count(Document doc, String key, long defaultValue) {
+        Number value = (Number) doc.get(key);
+        return (value != null) ? value.longValue() : defaultValue;
+    }
+
+}
@@ -5,6 +5,11 @@
 <%-- add the line below, or JSTL won't work --%>
 <%@ taglib prefix="c" uri="http://java.sun.com/jsp/jstl/core" %>
 <%@page contentType="text/html" pageEncoding="UTF-8"%>
+<%@page import="hackernews.api.server.CircuitBreaker"%>
+<%@page import="hackernews.api.server.ItemCache"%>
+<%@page import="hackernews.api.server.SingleFlight"%>
+<%@page import="hackernews.api.server.UpdatesPoller"%>
+<%@page import="hackernews.api.server.UpstreamClient"%>
 <!DOCTYPE html>
 <html>
     <head>
@@ -23,6 +28,25 @@
                 out.println("Not available");
             }
         %></p>
+        <p><b>Query Latency Percentiles:</b></p>
+        <table>
+            <tr>
+                <th>Type</th>
+                <th>Window</th>
+                <th>Queries</th>
+                <th>p50 (ms)</th>
+                <th>p90 (ms)</th>
+                <th>p99 (ms)</th>
+                <th>p99.9 (ms)</th>
+            </tr>
+            <c:forEach items="${latency_percentiles}" var="item">
+                <tr>
+                    <c:forEach items="${item}" var="sub">
+                        <td>${sub}</td>
+                    </c:forEach>
+                </tr>
+            </c:forEach>
+        </table>
         <p><b>Most Queried Story:</b> <%
             String mostFreqID = (String) request.getAttribute("most_freq_id");
             String mostFreqTitle = (String) request.getAttribute("most_freq_title");
@@ -33,12 +57,97 @@
                 out.println("Not available");
             }
         %></p>
+        <p><b>Most Queried Stories:</b></p>
+        <c:choose>
+            <c:when test="${top_stories != null}">
+                <table>
+                    <tr>
+                        <th>Window</th>
+                        <th>Rank</th>
+                        <th>Title</th>
+                        <th>ID</th>
+                        <th>Times</th>
+                    </tr>
+                    <c:forEach items="${top_stories}" var="item">
+                        <tr>
+                            <c:forEach items="${item}" var="sub">
+                                <td><c:out value="${sub}"/></td>
+                            </c:forEach>
+                        </tr>
+                    </c:forEach>
+                </table>
+            </c:when>
+            <c:otherwise>
+                <p>No record found.</p>
+            </c:otherwise>
+        </c:choose>
         <p><b>Average HN API Service Downtime:</b> <%
             out.println((Double)request.getAttribute("hn_down_freq") + " per month");
         %></p>
+        <p><b>Item Cache:</b> <%
+            Iterable<ItemCache<?, ?>> itemCaches = (Iterable<ItemCache<?, ?>>) request.getAttribute("item_caches");
+            if (itemCaches != null) {
+                for (ItemCache<?, ?> cache : itemCaches) {
+                    out.println(String.format("<br>%s: %.2f%% hit rate (%d hits, %d misses, %d stale hits, %d evictions, %d expired as changed; %d items, %d KB)",
+                            cache.getName(), cache.getHitRate() * 100, cache.getHitCount(),
+                            cache.getMissCount(), cache.getStaleHitCount(), cache.getEvictionCount(),
+                            cache.getExpirationCount(), cache.size(), cache.getWeight() / 1024));
+                }
+            } else {
+                out.println("Not available");
+            }
+        %></p>
+        <p><b>Coalesced Item Fetches:</b> <%
+            SingleFlight<?, ?> itemFetches = (SingleFlight<?, ?>) request.getAttribute("item_fetches");
+            if (itemFetches != null) {
+                out.println(String.format("%.2f%% (%d of %d fetches shared an in-flight request)",
+                        itemFetches.getCoalesceRate() * 100, itemFetches.getCoalescedCount(),
+                        itemFetches.getCallCount()));
+            } else {
+                out.println("Not available");
+            }
+        %></p>
+        <p><b>Upstream Requests:</b> <%
+            UpstreamClient upstream = (UpstreamClient) request.getAttribute("upstream_client");
+            if (upstream != null) {
+                out.println(String.format("%d requests (%d failed), %.1f ms on average",
+                        upstream.getCallCount(), upstream.getFailureCount(),
+                        upstream.getAverageCallTime()));
+            } else {
+                out.println("Not available");
+            }
+        %></p>
+        <p><b>Upstream Circuit Breaker:</b> <%
+            CircuitBreaker breaker = (CircuitBreaker) request.getAttribute("circuit_breaker");
+            if (breaker != null) {
+                out.println(String.format("%s (opened %d times, %d requests rejected)",
+                        breaker.getState(), breaker.getOpenCount(), breaker.getRejectedCount()));
+            } else {
+                out.println("Not available");
+            }
+        %></p>
+        <p><b>Changed Items Feed:</b> <%
+            UpdatesPoller updates = (UpdatesPoller) request.getAttribute("updates_poller");
+            if (updates != null) {
+                out.println(String.format("%d polls (%d failed), %d changed items reported",
+                        updates.getPollCount(), updates.getFailureCount(),
+                        updates.getChangedItemCount()));
+            } else {
+                out.println("Not polled");
+            }
+        %></p>
+        <p><b>Dropped Log Records:</b> <%
+            out.println((Long)request.getAttribute("log_dropped"));
+        %></p>
         <hr>
         
         <h2>Full Logs</h2>
+        <form method="get" action="dashboard">
+            From <input type="date" name="from" value="<c:out value='${param.from}'/>">
+            To <input type="date" name="to" value="<c:out value='${param.to}'/>">
+            Page size <input type="number" name="size" min="1" max="1000" value="<c:out value='${empty param.size ? 50 : param.size}'/>">
+            <input type="submit" value="Filter">
+        </form>
         <h3>All recorded stories queries:</h3>
         <c:choose>
             <c:when test="${story_queried != null}">
@@ -56,6 +165,9 @@
                         </tr>
                     </c:forEach>
                 </table>
+                <c:if test="${story_queried_next != null}">
+                    <p><a href="<c:out value='${story_queried_next}'/>">Next page &raquo;</a></p>
+                </c:if>
             </c:when>
             <c:otherwise>
                 <p>No record found.</p>
@@ -70,9 +182,16 @@
                         <th>Date</th>
                     </tr>
                     <c:forEach items="${api_down}" var="item">
-                        <tr>${item}</tr>
+                        <tr>
+                            <c:forEach items="${item}" var="sub">
+                                <td>${sub}</td>
+                            </c:forEach>
+                        </tr>
                     </c:forEach>
                 </table>
+                <c:if test="${api_down_next != null}">
+                    <p><a href="<c:out value='${api_down_next}'/>">Next page &raquo;</a></p>
+                </c:if>
             </c:when>
             <c:otherwise>
                 <p>No record found.</p>
@@ -96,6 +215,9 @@
                         </tr>
                     </c:forEach>
                 </table>
+                <c:if test="${wrong_reqs_next != null}">
+                    <p><a href="<c:out value='${wrong_reqs_next}'/>">Next page &raquo;</a></p>
+                </c:if>
             </c:when>
             <c:otherwise>
                 <p>No record found.</p>
@@ -118,6 +240,9 @@
                         </tr>
                     </c:forEach>
                 </table>
+                <c:if test="${api_latency_next != null}">
+                    <p><a href="<c:out value='${api_latency_next}'/>">Next page &raquo;</a></p>
+                </c:if>
             </c:when>
             <c:otherwise>
                 <p>No record found.</p>
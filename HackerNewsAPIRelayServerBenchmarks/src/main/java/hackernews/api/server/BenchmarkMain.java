@@ -0,0 +1,23 @@
+package hackernews.api.server;
+
+/**
+ * Entry point of <code>benchmarks.jar</code>: runs JMH with the GC profiler
+ * always on, so every result comes with its allocation rate
+ * (<code>gc.alloc.rate.norm</code> is bytes allocated per operation).
+ * <p>
+ * All JMH options are passed through, e.g.
+ * <code>java -jar target/benchmarks.jar ViewStory -p commentCount=1000</code>.
+ *
+ * @author Stephen Xie &lt;[redacted]@andrew.cmu.edu&gt;
+ */
+public class BenchmarkMain {
+
+    public static void main(String[] args) throws Exception {
+        String[] withGc = new String[args.length + 2];
+        withGc[0] = "-prof";
+        withGc[1] = "gc";
+        System.arraycopy(args, 0, withGc, 2, args.length);
+        org.openjdk.jmh.Main.main(withGc);
+    }
+
+}
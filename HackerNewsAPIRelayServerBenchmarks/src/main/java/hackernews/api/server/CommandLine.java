@@ -0,0 +1,61 @@
+package hackernews.api.server;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Minimal parser of <code>--name value</code> command line options, for the
+ * load test tools.
+ *
+ * @author Stephen Xie &lt;[redacted]@andrew.cmu.edu&gt;
+ */
+final class CommandLine {
+
+    private final Map<String, String> options = new HashMap<>();
+    private final List<String> arguments = new ArrayList<>();
+
+    CommandLine(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].startsWith("--")) {
+                if (i + 1 == args.length)
+                    throw new IllegalArgumentException("Missing value of " + args[i]);
+                options.put(args[i].substring(2), args[++i]);
+            } else {
+                arguments.add(args[i]);
+            }
+        }
+    }
+
+    boolean has(String name) {
+        return options.containsKey(name);
+    }
+
+    String getString(String name, String defaultValue) {
+        return options.getOrDefault(name, defaultValue);
+    }
+
+    int getInt(String name, int defaultValue) {
+        String value = options.get(name);
+        return (value != null) ? Integer.parseInt(value) : defaultValue;
+    }
+
+    long getLong(String name, long defaultValue) {
+        String value = options.get(name);
+        return (value != null) ? Long.parseLong(value) : defaultValue;
+    }
+
+    double getDouble(String name, double defaultValue) {
+        String value = options.get(name);
+        return (value != null) ? Double.parseDouble(value) : defaultValue;
+    }
+
+    /**
+     * @return the arguments that aren't options, in order
+     */
+    List<String> getArguments() {
+        return arguments;
+    }
+
+}
@@ -0,0 +1,69 @@
+package hackernews.api.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Sorting the comments of a story in reverse chronological order, with the
+ * deleted / failed ones (<code>null</code>s) put last, as done by
+ * {@link HackerNewsAPIServlet#sortComments(Comment[])}.
+ * <p>
+ * Comments come back from the fan-out in ranked display order, which is
+ * mostly unrelated to their time; the input is shuffled to match. Sorting
+ * works in place, so each operation sorts a fresh copy; {@link #copyOnly()}
+ * measures the copy alone, to be subtracted.
+ *
+ * @author Stephen Xie &lt;[redacted]@andrew.cmu.edu&gt;
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CommentSortBenchmark {
+
+    @Param({"10", "100", "1000"})
+    public int commentCount;
+
+    private Comment[] comments;
+
+    @Setup
+    public void setUp() throws IOException {
+        List<Comment> parsed = new ArrayList<>(commentCount);
+        for (String raw : new Payloads(42).comments(commentCount))
+            parsed.add((Comment) ItemDecoder.decode(  // null if deleted
+                    new ByteArrayInputStream(raw.getBytes(StandardCharsets.UTF_8))));
+        Collections.shuffle(parsed, new Random(42));
+        comments = parsed.toArray(new Comment[commentCount]);
+    }
+
+    @Benchmark
+    public Object[] sort() {
+        return HackerNewsAPIServlet.sortComments(Arrays.copyOf(comments, comments.length));
+    }
+
+    @Benchmark
+    public Object[] copyOnly() {
+        return Arrays.copyOf(comments, comments.length);
+    }
+
+}
@@ -0,0 +1,281 @@
+package hackernews.api.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+import java.util.Random;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Checks {@link ItemDecoder} (and so {@link JsonReader}) against the org.json
+ * decoding it replaced, and against a list of edge cases.
+ * <p>
+ * Every payload is decoded both ways and the items compared field by field.
+ * The payloads are the {@link Payloads} corpus, plus generated comments with
+ * quotes, backslashes, control characters, non-ASCII and supplementary
+ * characters (raw and as <code>&#92;u</code> escapes), and texts long enough to
+ * cross the parser's 8 KB buffer. Each payload is also fed in small chunks,
+ * so that every string, escape, number and multibyte sequence is split
+ * across buffer refills somewhere. The edge cases are checked against their
+ * expected results: null fields, deleted items, nested unknown fields,
+ * numbers too long for a long, and malformed input.
+ * <pre>
+ * java -cp target/benchmarks.jar hackernews.api.server.DecoderCheck
+ * </pre>
+ * Exits with status 1 if anything doesn't match.
+ *
+ * @author Stephen Xie &lt;[redacted]@andrew.cmu.edu&gt;
+ */
+public class DecoderCheck {
+
+    // bytes per read() of the chunked streams; 8192 fills the parser's buffer exactly
+    private static final int[] CHUNK_SIZES = {1, 2, 3, 7, 8192};
+
+    private static final String[] TRICKY = {
+        "\"", "\\", "/", "</p>", "\n", "\t", "\u0001", "\u001f", "\u007f",
+        "\u00e9", "\u00df", "\u4e2d\u6587", "\u20ac", "\ud83d\ude00", "\ud834\udd1e", "\ufeff"
+    };
+
+    private int checked = 0;
+    private final List<String> failures = new ArrayList<>();
+
+
+    public static void main(String[] args) throws IOException {
+        DecoderCheck check = new DecoderCheck();
+        check.corpus();
+        check.trickyComments();
+        check.bufferBoundaries();
+        check.edgeCases();
+
+        System.out.println(check.checked + " payloads checked, " + check.failures.size() + " failed");
+        for (String failure : check.failures)
+            System.out.println("  " + failure);
+        if (!check.failures.isEmpty())
+            System.exit(1);
+    }
+
+    // the benchmark payloads
+    private void corpus() {
+        for (long seed = 1; seed <= 5; seed++) {
+            Payloads payloads = new Payloads(seed);
+            long storyId = 15000000 + seed * 100000;
+            compare(payloads.story(storyId, storyId + 1, 300), false);
+            for (String comment : payloads.comments(storyId, storyId + 1, 300))
+                compare(comment, true);
+        }
+    }
+
+    // comments whose texts are full of characters that need care
+    private void trickyComments() {
+        Random random = new Random(7);
+        for (int i = 0; i < 500; i++) {
+            int length = (i % 50 == 0) ? 20000 : random.nextInt(400);
+            StringBuilder text = new StringBuilder();
+            while (text.length() < length) {
+                text.append(random.nextBoolean() ? "word " : TRICKY[random.nextInt(TRICKY.length)]);
+            }
+            String raw = new JSONObject()
+                    .put("id", 20000000 + i)
+                    .put("type", "comment")
+                    .put("by", "user" + random.nextInt(100))
+                    .put("parent", 19999999)
+                    .put("time", 1510000000 + i)
+                    .put("text", text.toString())
+                    .put("kids", new JSONArray(Arrays.asList(1L, 22L, 333L)))
+                    .toString();
+            compare(raw, true);
+            // the same with every non-ASCII character escaped
+            compare(escapeNonAscii(raw), true);
+        }
+    }
+
+    // multibyte sequences and escapes straddling the end of the first 8 KB
+    private void bufferBoundaries() {
+        String head = "{\"by\":\"u\",\"id\":1,\"parent\":2,\"time\":3,\"type\":\"comment\",\"text\":\"";
+        String[] straddling = {"\u00e9", "\u4e2d", "\ud83d\ude00", "\\\"", "\\u00e9", "\\ud83d\\ude00"};
+        for (String s : straddling) {
+            for (int shift = 0; shift < 8; shift++) {
+                StringBuilder raw = new StringBuilder(head);
+                while (raw.length() < 8192 - shift)
+                    raw.append('a');
+                raw.append(s).append("tail\",\"kids\":[").append(Long.MAX_VALUE / 10).append("]}");
+                compare(raw.toString(), true);
+            }
+        }
+    }
+
+    private void edgeCases() {
+        expect("null", null);
+        expect("  null  ", null);
+        expect("{\"id\":1,\"type\":\"story\",\"by\":\"a\",\"title\":\"t\",\"time\":5,\"url\":null,\"kids\":null}",
+                new Story(1, "a", "t", 5, null, null));
+        expect("{\"id\":1,\"type\":\"story\",\"by\":\"a\",\"title\":\"t\",\"time\":5,\"kids\":[]}",
+                new Story(1, "a", "t", 5, null, new long[0]));
+        expect("{\"id\":2,\"type\":\"comment\",\"by\":null,\"parent\":1,\"time\":5,\"text\":\"x\"}", null);
+        expect("{\"id\":2,\"type\":\"comment\",\"deleted\":true,\"parent\":1,\"time\":5}", null);
+        expect("{\"id\":2,\"type\":\"story\",\"by\":\"a\",\"time\":5}", null);  // no title
+        expect("{\"id\":3,\"type\":\"poll\",\"poll\":{\"a\":[1,{\"b\":\"]}\\\"x\"}],\"c\":-1.5e3},"
+                + "\"parts\":[[],{}],\"score\":true,\"dead\":false,\"by\":\"b\",\"title\":\"t\",\"time\":1}",
+                new Story(3, "b", "t", 1, null, null));
+        expect("{ \"id\" : 4 , \"type\" : \"comment\" , \"by\" : \"c\" , \"parent\" : 3 ,\n"
+                + "\t\"text\" : \"q\\\"\\\\\\/\\b\\f\\n\\r\\t\\u00e9\\ud83d\\ude00\" , \"time\" : 9 }",
+                new Comment(4, "c", 3, 9, "q\"\\/\b\f\n\r\t\u00e9\ud83d\ude00", null));
+        expect("{\"id\":123456789012345678,\"type\":\"story\",\"by\":\"a\",\"title\":\"t\",\"time\":1}",
+                new Story(123456789012345678L, "a", "t", 1, null, null));
+
+        expectFailure("{\"id\":1234567890123456789,\"type\":\"story\",\"by\":\"a\",\"title\":\"t\"}");
+        expectFailure("{\"id\":1,\"by\":\"a");
+        expectFailure("{\"id\":1,\"by\":\"a\\x\"}");
+        expectFailure("{\"id\":1,\"by\":\"a\\u12\"}");
+        expectFailure("{\"id\":-,\"by\":\"a\"}");
+        expectFailure("[1,2]");
+        expectFailure("");
+    }
+
+    // --- checks -------------------------------------------------------
+
+    // decodes with both decoders, whole and chunked, and compares
+    private void compare(String raw, boolean comment) {
+        checked++;
+        Item expected;
+        try {
+            expected = comment ? orgJsonComment(raw) : orgJsonStory(raw);
+        } catch (JSONException ex) {
+            failures.add("org.json can't read " + abbreviate(raw) + ": " + ex.getMessage());
+            return;
+        }
+        matches(raw, expected);
+    }
+
+    private void expect(String raw, Item expected) {
+        checked++;
+        matches(raw, expected);
+    }
+
+    private void matches(String raw, Item expected) {
+        byte[] bytes = raw.getBytes(StandardCharsets.UTF_8);
+        try {
+            Item whole = ItemDecoder.decode(new ByteArrayInputStream(bytes));
+            if (!same(expected, whole)) {
+                failures.add("decoded " + describe(whole) + ", expected " + describe(expected)
+                        + ": " + abbreviate(raw));
+                return;
+            }
+            for (int size : CHUNK_SIZES) {
+                Item chunked = ItemDecoder.decode(new ChunkedInputStream(bytes, size));
+                if (!same(whole, chunked)) {
+                    failures.add("differs when read " + size + " bytes at a time: " + abbreviate(raw));
+                    return;
+                }
+            }
+        } catch (IOException ex) {
+            failures.add(ex.getMessage() + ": " + abbreviate(raw));
+        }
+    }
+
+    private void expectFailure(String raw) {
+        checked++;
+        try {
+            Item item = ItemDecoder.decode(new ByteArrayInputStream(raw.getBytes(StandardCharsets.UTF_8)));
+            failures.add("decoded " + describe(item) + " instead of failing: " + abbreviate(raw));
+        } catch (IOException ex) {
+            // as expected
+        }
+    }
+
+    private static boolean same(Item a, Item b) {
+        if (a == null || b == null)
+            return a == b;
+        if (a.getClass() != b.getClass() || a.id != b.id || a.time != b.time
+                || !Objects.equals(a.by, b.by) || !Arrays.equals(a.comments, b.comments))
+            return false;
+        if (a instanceof Story) {
+            Story s = (Story) a, t = (Story) b;
+            return Objects.equals(s.title, t.title) && Objects.equals(s.url, t.url);
+        }
+        Comment c = (Comment) a, d = (Comment) b;
+        return c.parent == d.parent && Objects.equals(c.text, d.text);
+    }
+
+    // --- the org.json decoding ----------------------------------------
+
+    // as Story.parse did it
+    private static Story orgJsonStory(String raw) {
+        JSONObject item = new JSONObject(raw);
+        return new Story(item.getLong("id"), item.getString("by"), item.getString("title"),
+                item.getLong("time"), item.optString("url", null), kids(item));
+    }
+
+    // as Comment.parse did it; null if deleted
+    private static Comment orgJsonComment(String raw) {
+        JSONObject item = new JSONObject(raw);
+        if (item.optBoolean("deleted") || !item.has("by") || !item.has("text"))
+            return null;
+        return new Comment(item.getLong("id"), item.getString("by"), item.getLong("parent"),
+                item.getLong("time"), item.getString("text"), kids(item));
+    }
+
+    private static long[] kids(JSONObject item) {
+        JSONArray kids = item.optJSONArray("kids");
+        if (kids == null) return null;
+        long[] ids = new long[kids.length()];
+        for (int i = 0; i < ids.length; i++)
+            ids[i] = kids.getLong(i);
+        return ids;
+    }
+
+    // --- helpers ------------------------------------------------------
+
+    private static String escapeNonAscii(String json) {
+        StringBuilder out = new StringBuilder(json.length() + 64);
+        for (int i = 0; i < json.length(); i++) {
+            char c = json.charAt(i);
+            if (c < 0x80) out.append(c);
+            else out.append(String.format("\\u%04x", (int) c));
+        }
+        return out.toString();
+    }
+
+    private static String describe(Item item) {
+        if (item == null) return "null";
+        return item.getClass().getSimpleName() + " " + item.id;
+    }
+
+    private static String abbreviate(String raw) {
+        return (raw.length() <= 120) ? raw : raw.substring(0, 120) + "...";
+    }
+
+    // returns at most a given number of bytes per read
+    private static class ChunkedInputStream extends InputStream {
+        private final byte[] bytes;
+        private final int chunk;
+        private int pos = 0;
+
+        ChunkedInputStream(byte[] bytes, int chunk) {
+            this.bytes = bytes;
+            this.chunk = chunk;
+        }
+
+        @Override
+        public int read() {
+            return (pos < bytes.length) ? bytes[pos++] & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (pos >= bytes.length) return -1;
+            int n = Math.min(Math.min(len, chunk), bytes.length - pos);
+            System.arraycopy(bytes, pos, b, off, n);
+            pos += n;
+            return n;
+        }
+    }
+
+}
@@ -0,0 +1,251 @@
+package hackernews.api.server;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import org.json.JSONArray;
+
+/**
+ * A local stand-in for the Hacker News API, serving a generated corpus, so
+ * the relay can be load tested without the network.
+ * <p>
+ * Serves <code>/v0/topstories.json</code>,
+ * <code>/v0/item/{id}.json</code> (unknown items are <code>null</code>) and
+ * <code>/v0/updates.json</code> like the real API. The corpus never changes,
+ * so the updates feed lists a random sample of items each time instead, to
+ * exercise the relay's cache invalidation. Every response is delayed by a configurable latency
+ * plus a random jitter, and a configurable fraction of the requests fail with
+ * <code>503</code>. Point the relay at it with its
+ * <code>upstreamBaseUrl</code> init parameter or the
+ * <code>hackernews.upstreamBaseUrl</code> system property, set to
+ * {@link #getBaseUrl()}.
+ * <p>
+ * The corpus is generated by {@link Payloads}: each story has between 0 and
+ * 1,000 top-level comments, mostly few, and replies to them up to
+ * {@value #MAX_DEPTH} levels deep. The same seed always gives the same
+ * corpus.
+ * <p>
+ * Can be embedded (see {@link RelayLoadTest}) or run on its own:
+ * <pre>
+ * java -cp target/benchmarks.jar hackernews.api.server.FakeHackerNewsAPI \
+ *     [--port 8081] [--stories 500] [--latency 50] [--jitter 20] \
+ *     [--failure-rate 0.01] [--updates 50] [--seed 42]
+ * </pre>
+ *
+ * @author Stephen Xie &lt;[redacted]@andrew.cmu.edu&gt;
+ */
+public class FakeHackerNewsAPI {
+
+    private static final long FIRST_STORY_ID = 15000000;
+    private static final long FIRST_COMMENT_ID = 16000000;
+    private static final int MAX_DEPTH = 5;  // levels of comments
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+
+    private final byte[] topStories;
+    private final Map<Long, byte[]> items = new HashMap<>();  // read-only once started
+    private final long[] itemIds;  // keys of items, to sample the updates feed from
+    private final int updateCount;  // items listed by each response of the updates feed
+    private final long latency;  // in milliseconds
+    private final long jitter;  // in milliseconds
+    private final double failureRate;
+
+    private final AtomicLong requestCount = new AtomicLong();
+    private final AtomicLong failureCount = new AtomicLong();
+
+
+    /**
+     * Generates the corpus and binds the server; call {@link #start()} to
+     * start serving.
+     *
+     * @param port port to listen on; 0 for any free port
+     * @param storyCount number of top stories
+     * @param latency delay of every response, in milliseconds
+     * @param jitter maximum extra random delay, in milliseconds
+     * @param failureRate fraction of the requests answered with 503, from 0 to 1
+     * @param updateCount number of items listed by each response of the updates feed
+     * @param seed seed of the generated corpus
+     * @throws IOException if the port can't be bound
+     */
+    public FakeHackerNewsAPI(int port, int storyCount, long latency, long jitter, double failureRate,
+            int updateCount, long seed) throws IOException {
+        this.latency = latency;
+        this.jitter = jitter;
+        this.failureRate = failureRate;
+        this.updateCount = updateCount;
+
+        Payloads payloads = new Payloads(seed);
+        Random random = new Random(seed);
+        JSONArray ranking = new JSONArray();
+        long nextCommentId = FIRST_COMMENT_ID;
+        for (int i = 0; i < storyCount; i++) {
+            long storyId = FIRST_STORY_ID + i;
+            // mostly small threads, a few up to 1,000 comments
+            int commentCount = (int) Math.round(Math.pow(random.nextDouble(), 4) * 1000);
+            items.put(storyId, utf8(payloads.story(storyId, nextCommentId, commentCount)));
+            Map<Long, String> thread = new HashMap<>();
+            nextCommentId = payloads.thread(storyId, nextCommentId, commentCount, MAX_DEPTH, thread);
+            for (Map.Entry<Long, String> comment : thread.entrySet())
+                items.put(comment.getKey(), utf8(comment.getValue()));
+            ranking.put(storyId);
+        }
+        topStories = utf8(ranking.toString());
+        itemIds = new long[items.size()];
+        Iterator<Long> ids = items.keySet().iterator();
+        for (int i = 0; i < itemIds.length; i++)
+            itemIds[i] = ids.next();
+
+        // one thread per request in flight, since every request sleeps
+        executor = Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "fake-hn-api");
+            t.setDaemon(true);
+            return t;
+        });
+        server = HttpServer.create(new InetSocketAddress(port), 1024);
+        server.setExecutor(executor);
+        server.createContext("/v0/", this::handle);
+    }
+
+    /**
+     * Starts serving.
+     */
+    public void start() {
+        server.start();
+    }
+
+    /**
+     * Stops serving.
+     */
+    public void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    /**
+     * @return base URL of the API, ending with <code>/v0/</code>
+     */
+    public String getBaseUrl() {
+        return "http://localhost:" + server.getAddress().getPort() + "/v0/";
+    }
+
+    /**
+     * @return number of items in the corpus, stories and comments
+     */
+    public int getItemCount() {
+        return items.size();
+    }
+
+    public long getRequestCount() {
+        return requestCount.get();
+    }
+
+    public long getFailureCount() {
+        return failureCount.get();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            requestCount.incrementAndGet();
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            long delay = latency + ((jitter > 0) ? random.nextLong(jitter + 1) : 0);
+            if (delay > 0) {
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;  // shutting down
+                }
+            }
+
+            if (random.nextDouble() < failureRate) {
+                failureCount.incrementAndGet();
+                exchange.sendResponseHeaders(503, -1);
+                return;
+            }
+
+            byte[] body = find(exchange.getRequestURI().getPath());
+            if (body == null) {
+                exchange.sendResponseHeaders(404, -1);
+                return;
+            }
+            exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    // body served at a path, or null if the path doesn't exist
+    private byte[] find(String path) {
+        if (path.equals("/v0/topstories.json"))
+            return topStories;
+        if (path.equals("/v0/updates.json"))
+            return updates();
+        if (path.startsWith("/v0/item/") && path.endsWith(".json")) {
+            try {
+                byte[] item = items.get(Long.parseLong(path.substring(9, path.length() - 5)));
+                return (item != null) ? item : utf8("null");  // like the real API
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+        return null;
+    }
+
+    // a changed items feed listing random items, and no profiles
+    private byte[] updates() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        JSONArray changed = new JSONArray();
+        for (int i = 0; i < updateCount && itemIds.length > 0; i++)
+            changed.put(itemIds[random.nextInt(itemIds.length)]);
+        return utf8("{\"items\":" + changed + ",\"profiles\":[]}");
+    }
+
+    private static byte[] utf8(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    public static void main(String[] args) throws IOException {
+        CommandLine cl = new CommandLine(args);
+        FakeHackerNewsAPI api = fromCommandLine(cl, cl.getInt("port", 8081));
+        api.start();
+        System.out.println("Serving " + api.getItemCount() + " items at " + api.getBaseUrl());
+    }
+
+    /**
+     * Creates a server with the options <code>--stories</code>,
+     * <code>--latency</code>, <code>--jitter</code>,
+     * <code>--failure-rate</code>, <code>--updates</code> and
+     * <code>--seed</code>.
+     *
+     * @param cl the command line
+     * @param port port to listen on
+     * @return the server, not started yet
+     * @throws IOException if the port can't be bound
+     */
+    static FakeHackerNewsAPI fromCommandLine(CommandLine cl, int port) throws IOException {
+        return new FakeHackerNewsAPI(port,
+                cl.getInt("stories", 500),
+                cl.getLong("latency", 50),
+                cl.getLong("jitter", 20),
+                cl.getDouble("failure-rate", 0),
+                cl.getInt("updates", 50),
+                cl.getLong("seed", 42));
+    }
+
+}
@@ -0,0 +1,83 @@
+package hackernews.api.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Decoding raw item JSON from the HackerNews API into {@link Story} and
+ * {@link Comment} objects, with {@link ItemDecoder}.
+ * <p>
+ * The <code>dom*</code> benchmarks measure what the decoder replaced:
+ * turning the bytes into a string and the string into an org.json
+ * <code>JSONObject</code>, before any field is even read.
+ *
+ * @author Stephen Xie &lt;[redacted]@andrew.cmu.edu&gt;
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ItemParsingBenchmark {
+
+    @Param({"0", "10", "100", "1000"})
+    public int commentCount;
+
+    private byte[] story;
+    private byte[][] comments;
+
+    @Setup
+    public void setUp() {
+        Payloads payloads = new Payloads(42);
+        story = payloads.story(commentCount).getBytes(StandardCharsets.UTF_8);
+        String[] raw = payloads.comments(commentCount);
+        comments = new byte[raw.length][];
+        for (int i = 0; i < raw.length; i++)
+            comments[i] = raw[i].getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * One story, whose kids list grows with the comment count.
+     */
+    @Benchmark
+    public Item decodeStory() throws IOException {
+        return ItemDecoder.decode(new ByteArrayInputStream(story));
+    }
+
+    /**
+     * All the top-level comments of the story.
+     */
+    @Benchmark
+    public void decodeComments(Blackhole bh) throws IOException {
+        for (byte[] comment : comments)
+            bh.consume(ItemDecoder.decode(new ByteArrayInputStream(comment)));
+    }
+
+    @Benchmark
+    public Object domStory() {
+        return new JSONObject(new String(story, StandardCharsets.UTF_8));
+    }
+
+    @Benchmark
+    public void domComments(Blackhole bh) {
+        for (byte[] comment : comments)
+            bh.consume(new JSONObject(new String(comment, StandardCharsets.UTF_8)));
+    }
+
+}
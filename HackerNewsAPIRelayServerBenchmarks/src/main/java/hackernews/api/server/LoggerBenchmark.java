@@ -0,0 +1,118 @@
+package hackernews.api.server;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import org.bson.Document;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The cost of logging on a request thread: building the record, counting it
+ * into the in-memory histograms / rankings and queueing it for the background
+ * writer.
+ * <p>
+ * The logger writes to a store that discards everything, so only the logger
+ * itself is measured. The queue is large enough for the writer to keep up;
+ * the number of dropped records is printed at the end of each trial and
+ * should be 0.
+ *
+ * @author Stephen Xie &lt;[redacted]@andrew.cmu.edu&gt;
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class LoggerBenchmark {
+
+    private static final int STORIES = 1000;
+
+    private APIUsageLogger logger;
+    private final String[] ids = new String[STORIES];
+    private final String[] titles = new String[STORIES];
+
+    @Setup
+    public void setUp() {
+        logger = new APIUsageLogger(new NullLogStore(), 1 << 16, 500, 1000, false, Long.MAX_VALUE);
+        for (int i = 0; i < STORIES; i++) {
+            ids[i] = Long.toString(15677206L + i);
+            titles[i] = "Story title number " + i + " about something on Hacker News";
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        logger.shutdown();
+        System.out.println("dropped log records: " + logger.getDroppedCount());
+    }
+
+    // each thread walks through the stories on its own
+    @State(Scope.Thread)
+    public static class Cursor {
+        int next;
+
+        int advance() {
+            int i = next;
+            next = (next + 1) % STORIES;
+            return (i * i) % STORIES;  // uneven: some stories come up more often
+        }
+    }
+
+    @Benchmark
+    public void logTimeUsed2GetStory(Cursor cursor) {
+        logger.logTimeUsed2GetStory(50 + cursor.advance());
+    }
+
+    @Benchmark
+    public void logStoryQueried(Cursor cursor) {
+        int i = cursor.advance();
+        logger.logStoryQueried(ids[i], titles[i]);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void logStoryQueriedContended(Cursor cursor) {
+        int i = cursor.advance();
+        logger.logStoryQueried(ids[i], titles[i]);
+    }
+
+    // a store that keeps nothing
+    private static class NullLogStore implements LogStore {
+        @Override
+        public void append(String collection, List<Document> records) {}
+
+        @Override
+        public LogPage findPage(String collection, String cursor, int pageSize, long from, long to,
+                Function<Document, String[]> mapper) {
+            return null;
+        }
+
+        @Override
+        public void scan(String collection, Consumer<Document> visitor) {}
+
+        @Override
+        public Document loadSummary() {
+            return null;
+        }
+
+        @Override
+        public void saveSummary(Document summary) {}
+
+        @Override
+        public void close() {}
+    }
+
+}
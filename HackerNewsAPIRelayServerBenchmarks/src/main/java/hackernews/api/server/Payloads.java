@@ -0,0 +1,184 @@
+package hackernews.api.server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Generates item JSON shaped like what the HackerNews API returns, so the
+ * benchmarks run on realistic payloads without touching the network.
+ * <p>
+ * Comment texts are HTML with the API's usual entities and paragraph tags,
+ * mostly a few hundred characters long with a tail of long ones; about a
+ * third of the comments have replies, and a few are deleted. The same seed
+ * always gives the same payloads.
+ *
+ * @author Stephen Xie &lt;[redacted]@andrew.cmu.edu&gt;
+ */
+final class Payloads {
+
+    private static final String[] WORDS = {
+        "the", "a", "of", "to", "and", "in", "is", "it", "that", "for", "you", "this",
+        "server", "latency", "cache", "request", "database", "thread", "memory", "compiler",
+        "startup", "benchmark", "don&#x27;t", "it&#x27;s", "&quot;fast&quot;", "&gt;",
+        "<i>really</i>", "<a href=\"https:&#x2F;&#x2F;example.com&#x2F;\">link</a>"
+    };
+
+    private static final String[] TITLE_WORDS = {
+        "A", "faster", "Rust", "Java", "database", "for", "the", "web", "in", "2017",
+        "compiler", "written", "from", "scratch", "why", "we", "moved", "to", "Postgres"
+    };
+
+    private static final long STORY_ID = 15677206;
+    private static final long FIRST_COMMENT_ID = 15677300;
+
+    private final Random random;
+
+    Payloads(long seed) {
+        this.random = new Random(seed);
+    }
+
+    /**
+     * @param commentCount number of top-level comments
+     * @return raw JSON of a story with that many kids
+     */
+    String story(int commentCount) {
+        return story(STORY_ID, FIRST_COMMENT_ID, commentCount);
+    }
+
+    /**
+     * @param commentCount number of comments
+     * @return raw JSON of the top-level comments of {@link #story(int)}
+     */
+    String[] comments(int commentCount) {
+        return comments(STORY_ID, FIRST_COMMENT_ID, commentCount);
+    }
+
+    /**
+     * @param id story ID
+     * @param firstCommentId ID of the first top-level comment; the others
+     *                       follow consecutively
+     * @param commentCount number of top-level comments
+     * @return raw JSON of the story
+     */
+    String story(long id, long firstCommentId, int commentCount) {
+        JSONObject story = new JSONObject()
+                .put("by", "user" + random.nextInt(5000))
+                .put("descendants", commentCount)
+                .put("id", id)
+                .put("score", 100 + random.nextInt(900))
+                .put("time", 1510421952L)
+                .put("title", title())
+                .put("type", "story")
+                .put("url", "https://example.com/" + id);
+        if (commentCount > 0) {
+            JSONArray kids = new JSONArray();
+            for (int i = 0; i < commentCount; i++)
+                kids.put(firstCommentId + i);
+            story.put("kids", kids);
+        }
+        return story.toString();
+    }
+
+    /**
+     * @param storyId story ID
+     * @param firstCommentId ID of the first comment
+     * @param commentCount number of comments
+     * @return raw JSON of the top-level comments of the story, in ID order
+     */
+    String[] comments(long storyId, long firstCommentId, int commentCount) {
+        String[] comments = new String[commentCount];
+        for (int i = 0; i < commentCount; i++) {
+            // reply IDs point past the comments; they don't exist
+            long[] kids = (random.nextInt(3) == 0) ? new long[1 + random.nextInt(5)] : null;
+            if (kids != null) {
+                for (int k = 0; k < kids.length; k++)
+                    kids[k] = firstCommentId + commentCount + random.nextInt(100000);
+            }
+            comments[i] = comment(firstCommentId + i, storyId, kids);
+        }
+        return comments;
+    }
+
+    /**
+     * Generates the whole comment tree of a story: the top-level comments
+     * with consecutive IDs, and replies to them down to some depth, with the
+     * IDs after those. About a quarter of the comments get 1 to 4 replies.
+     *
+     * @param storyId story ID
+     * @param firstCommentId ID of the first comment
+     * @param commentCount number of top-level comments
+     * @param maxDepth maximum number of comment levels, at least 1
+     * @param items where the raw JSON of the comments is put, by ID
+     * @return the ID after the last comment generated
+     */
+    long thread(long storyId, long firstCommentId, int commentCount, int maxDepth, Map<Long, String> items) {
+        long nextId = firstCommentId + commentCount;
+        // breadth first: the comments of one level, with their parents
+        List<long[]> level = new ArrayList<>();  // {id, parent}
+        for (int i = 0; i < commentCount; i++)
+            level.add(new long[] {firstCommentId + i, storyId});
+        for (int depth = 1; !level.isEmpty(); depth++) {
+            List<long[]> next = new ArrayList<>();
+            for (long[] c : level) {
+                long[] kids = null;
+                if (depth < maxDepth && random.nextInt(4) == 0) {
+                    kids = new long[1 + random.nextInt(4)];
+                    for (int k = 0; k < kids.length; k++) {
+                        kids[k] = nextId++;
+                        next.add(new long[] {kids[k], c[0]});
+                    }
+                }
+                items.put(c[0], comment(c[0], c[1], kids));
+            }
+            level = next;
+        }
+        return nextId;
+    }
+
+    // raw JSON of a comment; about 3% are deleted, keeping their replies like
+    // on the real API
+    private String comment(long id, long parentId, long[] kids) {
+        JSONObject comment = new JSONObject()
+                .put("id", id)
+                .put("parent", parentId)
+                .put("time", 1510421952L + random.nextInt(86400))
+                .put("type", "comment");
+        if (random.nextInt(100) < 3) {
+            comment.put("deleted", true);
+        } else {
+            comment.put("by", "user" + random.nextInt(5000))
+                    .put("text", text());
+        }
+        if (kids != null)
+            comment.put("kids", new JSONArray(kids));
+        return comment.toString();
+    }
+
+    // a story title of 4 to 12 words
+    private String title() {
+        int words = 4 + random.nextInt(9);
+        StringBuilder title = new StringBuilder();
+        for (int i = 0; i < words; i++) {
+            if (i > 0) title.append(' ');
+            title.append(TITLE_WORDS[random.nextInt(TITLE_WORDS.length)]);
+        }
+        return title.toString();
+    }
+
+    // HTML comment text: usually 100 to 600 characters, sometimes a few thousand
+    private String text() {
+        int length = (random.nextInt(10) == 0) ? 1000 + random.nextInt(3000) : 100 + random.nextInt(500);
+        StringBuilder text = new StringBuilder(length + 32);
+        while (text.length() < length) {
+            if (text.length() > 0)
+                text.append(random.nextInt(12) == 0 ? "<p>" : " ");
+            text.append(WORDS[random.nextInt(WORDS.length)]);
+        }
+        return text.toString();
+    }
+
+}
@@ -0,0 +1,311 @@
+package hackernews.api.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import org.json.JSONArray;
+
+/**
+ * Load driver of a running relay: makes a mix of requests from a number of
+ * threads for a while, then reports the requests per second and the latency
+ * percentiles of each kind. The kinds, weighted by <code>--mix</code>:
+ * <ul>
+ *     <li><strong>top:</strong> the first page of <code>/top-stories</code>,
+ *         which the relay keeps rendered.</li>
+ *     <li><strong>page:</strong> a later page,
+ *         <code>/top-stories?offset=&amp;limit=</code>, rendered on each
+ *         request.</li>
+ *     <li><strong>story:</strong> <code>/story/{id}</code> with its top-level
+ *         comments.</li>
+ *     <li><strong>deep:</strong> <code>/story/{id}?depth=N</code>, with N
+ *         from 2 to <code>--max-depth</code>, hydrating the comment tree.</li>
+ *     <li><strong>conditional:</strong> <code>/story/{id}</code> with
+ *         <code>If-None-Match</code> set to the ETag of an earlier response
+ *         for that story, as a revalidating client or CDN would; a
+ *         <code>304</code> counts as a success.</li>
+ * </ul>
+ * <p>
+ * With <code>--fake-upstream PORT</code>, a {@link FakeHackerNewsAPI} is
+ * started on that port first (taking its options as well), so the whole test
+ * runs without the network; the relay has to be started with
+ * <code>-Dhackernews.upstreamBaseUrl=http://localhost:PORT/v0/</code>.
+ * Story IDs are taken from the relay's <code>/top-stories</code> response.
+ * <pre>
+ * java -cp target/benchmarks.jar hackernews.api.server.RelayLoadTest \
+ *     http://localhost:8080/HackerNewsAPIRelayServer/hackernews-api \
+ *     [--threads 16] [--warmup 10] [--duration 30] [--max-depth 4] \
+ *     [--mix top=10,page=10,story=50,deep=15,conditional=15] \
+ *     [--fake-upstream 8081 [fake API options]]
+ * </pre>
+ *
+ * @author Stephen Xie &lt;[redacted]@andrew.cmu.edu&gt;
+ */
+public class RelayLoadTest {
+
+    static final String DEFAULT_MIX = "top=10,page=10,story=50,deep=15,conditional=15";
+
+    // results of one kind of request; latencies in microseconds
+    private static class Endpoint {
+        final String name;
+        final LatencyHistogram latencies = new LatencyHistogram();
+        final AtomicLong errors = new AtomicLong();
+        final AtomicLong notModified = new AtomicLong();  // 304 responses
+
+        Endpoint(String name) {
+            this.name = name;
+        }
+    }
+
+    // status, body and ETag of a response
+    private static class Response {
+        final int status;
+        final String body;  // null unless the status is 200
+        final String etag;
+
+        Response(int status, String body, String etag) {
+            this.status = status;
+            this.body = body;
+            this.etag = etag;
+        }
+    }
+
+    private final String relayUrl;
+    private final int threads;
+    private final int maxDepth;  // of the deep requests
+    private final Endpoint topStories = new Endpoint("top");
+    private final Endpoint page = new Endpoint("page");
+    private final Endpoint story = new Endpoint("story");
+    private final Endpoint deep = new Endpoint("deep");
+    private final Endpoint conditional = new Endpoint("conditional");
+    private final Endpoint[] endpoints = {topStories, page, story, deep, conditional};
+    private final double[] mix;  // cumulative weight of each endpoint, up to 1
+    private volatile boolean recording = false;
+    private volatile long endTime;  // System.nanoTime() to stop at
+    private List<String> storyIds;
+    private final Map<String, String> etags = new ConcurrentHashMap<>();  // by story ID
+
+
+    /**
+     * @param relayUrl base URL of the relay's API, up to and including
+     *                 <code>/hackernews-api</code>
+     * @param threads number of concurrent clients
+     * @param maxDepth maximum <code>depth</code> of the deep story requests,
+     *                 at least 2
+     * @param mix relative weights of the kinds of requests, e.g.
+     *            <code>top=1,story=4</code>; kinds left out aren't requested
+     */
+    public RelayLoadTest(String relayUrl, int threads, int maxDepth, String mix) {
+        this.relayUrl = relayUrl.endsWith("/") ? relayUrl.substring(0, relayUrl.length() - 1) : relayUrl;
+        this.threads = threads;
+        this.maxDepth = Math.max(2, maxDepth);
+        this.mix = parseMix(mix);
+    }
+
+    // cumulative weights of the endpoints, in the order of "endpoints"
+    private double[] parseMix(String spec) {
+        double[] weights = new double[endpoints.length];
+        for (String part : spec.split(",")) {
+            String[] kv = part.trim().split("=");
+            int i = 0;
+            while (i < endpoints.length && !endpoints[i].name.equals(kv[0]))
+                i++;
+            if (kv.length != 2 || i == endpoints.length)
+                throw new IllegalArgumentException("Bad --mix entry: " + part);
+            weights[i] = Double.parseDouble(kv[1]);
+        }
+        double total = 0;
+        for (double w : weights)
+            total += w;
+        if (total <= 0)
+            throw new IllegalArgumentException("--mix has no positive weight: " + spec);
+        double[] cumulative = new double[weights.length];
+        double sum = 0;
+        for (int i = 0; i < weights.length; i++) {
+            sum += weights[i];
+            cumulative[i] = sum / total;
+        }
+        return cumulative;
+    }
+
+    /**
+     * Runs the test and prints the report.
+     *
+     * @param warmupSeconds how long to run before recording
+     * @param durationSeconds how long to record
+     * @throws IOException if the story IDs can't be read from the relay
+     * @throws InterruptedException if interrupted while waiting for the clients
+     */
+    public void run(int warmupSeconds, int durationSeconds) throws IOException, InterruptedException {
+        storyIds = readStoryIds();
+        System.out.println("Loading " + relayUrl + " with " + threads + " clients over "
+                + storyIds.size() + " stories");
+
+        endTime = System.nanoTime() + (warmupSeconds + durationSeconds) * 1000000000L;
+        List<Thread> clients = new ArrayList<>(threads);
+        for (int i = 0; i < threads; i++) {
+            Thread client = new Thread(this::runClient, "load-client-" + i);
+            client.start();
+            clients.add(client);
+        }
+        Thread.sleep(warmupSeconds * 1000L);
+        recording = true;
+        long startedAt = System.nanoTime();
+        for (Thread client : clients)
+            client.join();
+        double seconds = (System.nanoTime() - startedAt) / 1e9;
+
+        System.out.println();
+        System.out.println(String.format("%-12s %9s %7s %7s %9s %9s %9s %9s %9s",
+                "request", "requests", "errors", "304s", "req/s", "p50 ms", "p90 ms", "p99 ms", "p99.9 ms"));
+        for (Endpoint endpoint : endpoints) {
+            if (endpoint.latencies.getCount() > 0)
+                report(endpoint, seconds);
+        }
+    }
+
+    private void runClient() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        while (System.nanoTime() < endTime) {
+            double r = random.nextDouble();
+            int kind = 0;
+            while (kind < mix.length - 1 && r >= mix[kind])
+                kind++;
+            Endpoint endpoint = endpoints[kind];
+            String id = storyIds.get(random.nextInt(storyIds.size()));
+            String url;
+            String ifNoneMatch = null;
+            if (endpoint == topStories) {
+                url = relayUrl + "/top-stories";
+            } else if (endpoint == page) {
+                // one of the next few pages, as long as the first one
+                int limit = storyIds.size();
+                url = relayUrl + "/top-stories?offset=" + limit * (1 + random.nextInt(4)) + "&limit=" + limit;
+            } else if (endpoint == deep) {
+                url = relayUrl + "/story/" + id + "?depth=" + (2 + random.nextInt(maxDepth - 1));
+            } else {
+                url = relayUrl + "/story/" + id;
+                if (endpoint == conditional)
+                    ifNoneMatch = etags.get(id);  // none yet: fetch it in full
+            }
+
+            long start = System.nanoTime();
+            boolean ok;
+            boolean notModified = false;
+            try {
+                Response response = get(url, ifNoneMatch);
+                notModified = (response.status == HttpURLConnection.HTTP_NOT_MODIFIED);
+                ok = (response.body != null) || (notModified && ifNoneMatch != null);
+                if (response.body != null && response.etag != null && (endpoint == story || endpoint == conditional))
+                    etags.put(id, response.etag);
+            } catch (IOException e) {
+                ok = false;
+            }
+            if (recording) {
+                endpoint.latencies.record((System.nanoTime() - start) / 1000);
+                if (!ok)
+                    endpoint.errors.incrementAndGet();
+                if (notModified)
+                    endpoint.notModified.incrementAndGet();
+            }
+        }
+    }
+
+    private static void report(Endpoint endpoint, double seconds) {
+        LatencyHistogram h = endpoint.latencies;
+        System.out.println(String.format("%-12s %9d %7d %7d %9.1f %9.2f %9.2f %9.2f %9.2f",
+                endpoint.name, h.getCount(), endpoint.errors.get(), endpoint.notModified.get(),
+                h.getCount() / seconds,
+                h.getValueAtPercentile(50) / 1000.0, h.getValueAtPercentile(90) / 1000.0,
+                h.getValueAtPercentile(99) / 1000.0, h.getValueAtPercentile(99.9) / 1000.0));
+    }
+
+    // IDs listed by /top-stories, retrying while the relay warms up
+    private List<String> readStoryIds() throws IOException, InterruptedException {
+        for (int attempt = 0; ; attempt++) {
+            String body = get(relayUrl + "/top-stories", null).body;
+            if (body != null && body.startsWith("[")) {
+                JSONArray stories = new JSONArray(body);
+                List<String> ids = new ArrayList<>(stories.length());
+                for (int i = 0; i < stories.length(); i++)
+                    ids.add(stories.getJSONObject(i).getString("id"));
+                if (!ids.isEmpty())
+                    return ids;
+            }
+            if (attempt == 30)
+                throw new IOException("No top stories from " + relayUrl);
+            Thread.sleep(1000);
+        }
+    }
+
+    /**
+     * Makes a <code>GET</code> request, reading the whole body so the
+     * connection can be reused.
+     *
+     * @param url the URL
+     * @param ifNoneMatch value of the <code>If-None-Match</code> header, or
+     *                    null for none
+     * @return the response; its body is null if the status isn't 200
+     * @throws IOException if the request fails
+     */
+    private static Response get(String url, String ifNoneMatch) throws IOException {
+        HttpURLConnection conn = (HttpURLConnection) new URL(url).openConnection();
+        conn.setConnectTimeout(5000);
+        conn.setReadTimeout(60000);
+        if (ifNoneMatch != null)
+            conn.setRequestProperty("If-None-Match", ifNoneMatch);
+        int status = conn.getResponseCode();
+        String etag = conn.getHeaderField("ETag");
+        try (InputStream in = (status < 400) ? conn.getInputStream() : conn.getErrorStream()) {
+            if (in == null) return new Response(status, null, etag);
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            for (int n; (n = in.read(buffer)) > 0; )
+                body.write(buffer, 0, n);
+            return new Response(status,
+                    (status == 200) ? new String(body.toByteArray(), StandardCharsets.UTF_8) : null, etag);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        CommandLine cl = new CommandLine(args);
+        if (cl.getArguments().size() != 1) {
+            System.err.println("Usage: RelayLoadTest <relay URL> [--threads N] [--warmup SECONDS]"
+                    + " [--duration SECONDS] [--max-depth N] [--mix " + DEFAULT_MIX + "]"
+                    + " [--fake-upstream PORT [--stories N] [--latency MS] [--jitter MS]"
+                    + " [--failure-rate R] [--updates N] [--seed N]]");
+            System.exit(2);
+        }
+
+        int threads = cl.getInt("threads", 16);
+        System.setProperty("http.maxConnections", Integer.toString(threads));
+
+        FakeHackerNewsAPI upstream = null;
+        if (cl.has("fake-upstream")) {
+            upstream = FakeHackerNewsAPI.fromCommandLine(cl, cl.getInt("fake-upstream", 8081));
+            upstream.start();
+            System.out.println("Fake Hacker News API serving " + upstream.getItemCount()
+                    + " items at " + upstream.getBaseUrl());
+        }
+
+        new RelayLoadTest(cl.getArguments().get(0), threads, cl.getInt("max-depth", 4),
+                cl.getString("mix", DEFAULT_MIX))
+                .run(cl.getInt("warmup", 10), cl.getInt("duration", 30));
+
+        if (upstream != null) {
+            System.out.println();
+            System.out.println("Upstream requests: " + upstream.getRequestCount()
+                    + " (" + upstream.getFailureCount() + " failed)");
+            upstream.stop();
+        }
+    }
+
+}
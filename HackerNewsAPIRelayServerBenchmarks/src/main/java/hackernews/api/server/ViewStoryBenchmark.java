@@ -0,0 +1,106 @@
+package hackernews.api.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Building the <code>/story/{id}</code> response once the upstream data is in.
+ * <p>
+ * The response goes through the same steps as in the servlet: it's rendered
+ * to bytes with its strong entity tag (a SHA-256 hash), then compressed in
+ * the content coding under test, as a client sending
+ * <code>Accept-Encoding: gzip</code> gets it. Responses served from the
+ * response cache skip all of this and aren't measured here.
+ *
+ * @author Stephen Xie &lt;[redacted]@andrew.cmu.edu&gt;
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ViewStoryBenchmark {
+
+    @Param({"0", "10", "100", "1000"})
+    public int commentCount;
+
+    // a RenderedResponse.Encoding
+    @Param({"IDENTITY", "GZIP"})
+    public String encoding;
+
+    private byte[] rawStory;
+    private byte[][] rawComments;
+
+    // parsed and sorted, as they are when served from the item caches
+    private Story story;
+    private Comment[] comments;
+
+    private RenderedResponse.Encoding coding;
+
+    @Setup
+    public void setUp() throws IOException {
+        Payloads payloads = new Payloads(42);
+        rawStory = payloads.story(commentCount).getBytes(StandardCharsets.UTF_8);
+        String[] raw = payloads.comments(commentCount);
+        rawComments = new byte[raw.length][];
+        for (int i = 0; i < raw.length; i++)
+            rawComments[i] = raw[i].getBytes(StandardCharsets.UTF_8);
+        story = (Story) decode(rawStory);
+        comments = decodeAndSort(rawComments);
+        coding = RenderedResponse.Encoding.valueOf(encoding);
+    }
+
+    /**
+     * Everything after the upstream fetches: decoding the story and its
+     * comments, sorting the comments and rendering the response, i.e. a
+     * request that misses the item caches.
+     */
+    @Benchmark
+    public byte[] uncached() throws IOException {
+        Story s = (Story) decode(rawStory);
+        Comment[] c = (s.comments != null) ? decodeAndSort(rawComments) : null;
+        return render(s, c);
+    }
+
+    /**
+     * Only rendering the response, i.e. a request served from the item
+     * caches.
+     */
+    @Benchmark
+    public byte[] cached() {
+        return render(story, (story.comments != null) ? comments : null);
+    }
+
+    private static Comment[] decodeAndSort(byte[][] raw) throws IOException {
+        Comment[] decoded = new Comment[raw.length];
+        for (int i = 0; i < raw.length; i++)
+            decoded[i] = (Comment) decode(raw[i]);  // null if deleted
+        return HackerNewsAPIServlet.sortComments(decoded);
+    }
+
+    private static Item decode(byte[] raw) throws IOException {
+        return ItemDecoder.decode(new ByteArrayInputStream(raw));
+    }
+
+    // the bytes sent: rendered, hashed for the ETag and compressed
+    private byte[] render(Story s, Comment[] c) {
+        RenderedResponse response = HackerNewsAPIServlet.renderStory(
+                s.id, s, (c != null) ? new CommentTree(c) : null);
+        return response.body(coding);
+    }
+
+}